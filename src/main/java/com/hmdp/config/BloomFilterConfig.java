@@ -0,0 +1,32 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SystemConstants;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+/**
+ * 布隆过滤器配置类
+ * 店铺和笔记各有一个布隆过滤器，店铺的过滤器注册到CacheClient中，查缓存之前先过一遍
+ */
+
+@Configuration
+public class BloomFilterConfig {
+
+    @Bean
+    public RedisBloomFilter shopBloomFilter(StringRedisTemplate stringRedisTemplate, CacheClient cacheClient) {
+        RedisBloomFilter filter = new RedisBloomFilter(stringRedisTemplate, RedisConstants.BLOOM_SHOP_KEY,
+                SystemConstants.BLOOM_EXPECTED_INSERTIONS, SystemConstants.BLOOM_FPP);
+        cacheClient.registerBloomFilter(RedisConstants.CACHE_SHOP_KEY, filter);
+        return filter;
+    }
+
+    @Bean
+    public RedisBloomFilter blogBloomFilter(StringRedisTemplate stringRedisTemplate) {
+        return new RedisBloomFilter(stringRedisTemplate, RedisConstants.BLOOM_BLOG_KEY,
+                SystemConstants.BLOOM_EXPECTED_INSERTIONS, SystemConstants.BLOOM_FPP);
+    }
+}
@@ -1,10 +1,20 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SoldOutGate;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 /**
  * Redisson客户端配置类
@@ -35,6 +45,45 @@ public class RedisConfig {
     }
 
 
+    /**
+     * redis发布订阅的监听容器
+     * 订阅本地缓存失效频道，其它节点删除缓存后，本节点也删除自己的本地缓存
+     * 订阅热点key频道，其它节点探测到热点key后，本节点也提升为热点
+     * 订阅布隆过滤器新增频道，其它节点新增元素后，本节点同步更新本地镜像
+     * 订阅秒杀券售罄、补货频道，同步各节点的售罄标记
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       CacheClient cacheClient,
+                                                                       List<RedisBloomFilter> bloomFilters,
+                                                                       SoldOutGate soldOutGate) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        // 消息内容就是要删除的key
+        container.addMessageListener(
+                (message, pattern) -> cacheClient.evictLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+        // 消息内容就是热点key
+        container.addMessageListener(
+                (message, pattern) -> cacheClient.markHot(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.CACHE_HOT_KEY_CHANNEL));
+        // 消息内容就是新增的id
+        for (RedisBloomFilter filter : bloomFilters) {
+            container.addMessageListener(
+                    (message, pattern) -> filter.putLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                    new ChannelTopic(filter.getChannel()));
+        }
+        // 消息内容就是优惠券id
+        container.addMessageListener(
+                (message, pattern) -> soldOutGate.markLocal(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+        container.addMessageListener(
+                (message, pattern) -> soldOutGate.resetLocal(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(RedisConstants.SECKILL_RESTOCK_CHANNEL));
+        return container;
+    }
+
+
     /*@Bean
     public RedissonClient redissonClient3() {
         // 配置类
@@ -0,0 +1,104 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheMetrics;
+import com.hmdp.utils.CacheRebuildScheduler;
+import com.hmdp.utils.RedisCircuitBreaker;
+import com.hmdp.utils.RefreshAheadScheduler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 缓存运行指标
+ * </p>
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private CacheRebuildScheduler cacheRebuildScheduler;
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    @Resource
+    private RefreshAheadScheduler refreshAheadScheduler;
+
+    /**
+     * 按key前缀统计的命中、未命中、返回旧数据、抢锁失败次数和查询数据库的耗时分布
+     * @return
+     */
+    @GetMapping("/stats")
+    public Result stats() {
+        return Result.ok(cacheMetrics.snapshot());
+    }
+
+    /**
+     * 最近一段时间访问次数最多的key（采样估算）
+     * @param top 返回的个数
+     * @return
+     */
+    @GetMapping("/hot-keys")
+    public Result hotKeys(@RequestParam(value = "top", defaultValue = "20") Integer top) {
+        return Result.ok(cacheMetrics.topKeys(top));
+    }
+
+    /**
+     * 堆外缓存的条目数、占用字节数、命中次数等
+     * @return
+     */
+    @GetMapping("/off-heap")
+    public Result offHeapStats() {
+        return Result.ok(cacheClient.getOffHeapStats());
+    }
+
+    /**
+     * 本节点当前保留了本地副本的热点key
+     * @return
+     */
+    @GetMapping("/pinned")
+    public Result pinnedKeys() {
+        return Result.ok(cacheClient.getPinnedKeys());
+    }
+
+    /**
+     * redis熔断器的当前状态、状态切换次数和熔断期间拒绝的调用次数
+     * @return
+     */
+    @GetMapping("/circuit-breaker")
+    public Result circuitBreakerStats() {
+        return Result.ok(redisCircuitBreaker.getStats());
+    }
+
+    /**
+     * 缓存重建调度器的队列长度、并发上限、耗时、失败次数等
+     * @return
+     */
+    @GetMapping("/rebuild/stats")
+    public Result rebuildStats() {
+        return Result.ok(cacheRebuildScheduler.getStats());
+    }
+
+    /**
+     * 提前刷新调度器中等待刷新的key数、刷新次数、因数据库额度用完而推迟的次数等
+     * @return
+     */
+    @GetMapping("/refresh-ahead/stats")
+    public Result refreshAheadStats() {
+        return Result.ok(refreshAheadScheduler.getStats());
+    }
+}
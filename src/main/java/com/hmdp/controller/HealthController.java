@@ -0,0 +1,54 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.WarmUpProgress;
+import com.hmdp.service.IShopWarmUpService;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 健康检查，供负载均衡/k8s探针使用
+ * </p>
+ */
+@RestController
+@RequestMapping("/health")
+public class HealthController {
+
+    @Resource
+    private ApplicationAvailability applicationAvailability;
+
+    @Resource
+    private IShopWarmUpService shopWarmUpService;
+
+    /**
+     * 就绪检查，缓存预热完成之前（包括预热失败等待重试期间）返回503，返回体中带上预热进度
+     * @return
+     */
+    @GetMapping("/readiness")
+    public ResponseEntity<Result> readiness() {
+        WarmUpProgress progress = shopWarmUpService.getProgress();
+        boolean ready = applicationAvailability.getReadinessState() == ReadinessState.ACCEPTING_TRAFFIC
+                && progress.getFinished();
+        return ResponseEntity
+                .status(ready ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE)
+                .body(Result.ok(progress));
+    }
+
+    /**
+     * 存活检查
+     * @return
+     */
+    @GetMapping("/liveness")
+    public Result liveness() {
+        return Result.ok(applicationAvailability.getLivenessState());
+    }
+}
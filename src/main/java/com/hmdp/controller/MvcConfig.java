@@ -1,5 +1,6 @@
 package com.hmdp.controller;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -20,6 +21,9 @@ public class MvcConfig implements WebMvcConfigurer {
     @Autowired
     private RefreshTokenInterceptor refreshTokenInterceptor;
 
+    @Autowired
+    private AdminInterceptor adminInterceptor;
+
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
@@ -37,9 +41,16 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/shop/**",
                         "/shop-type/**",
                         "/upload/**",
-                        "/voucher/**"
+                        "/voucher/**",
+                        "/health/**",
+                        "/admin/**"
                 )
                 .order(1);
 
+        // 运维接口只认运维口令，不看登录用户
+        registry.addInterceptor(adminInterceptor)
+                .addPathPatterns("/admin/**")
+                .order(2);
+
     }
 }
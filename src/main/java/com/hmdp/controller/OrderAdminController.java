@@ -0,0 +1,47 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.MessageConstants;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 订单消息队列的运维接口，只有带着运维口令的请求才能访问
+ * </p>
+ */
+@RestController
+@RequestMapping("/admin/voucher-order")
+public class OrderAdminController {
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    /**
+     * 查看死信队列中超过重试次数的订单消息
+     * @param count 最多返回的个数
+     * @return
+     */
+    @GetMapping("dead-letters")
+    public Result queryDeadLetters(@RequestParam(value = "count", defaultValue = "20") Integer count) {
+        return Result.ok(voucherOrderService.queryDeadLetters(count));
+    }
+
+    /**
+     * 重放一条死信，重新发送到订单消息队列
+     * @param id 死信队列中的消息id
+     * @return
+     */
+    @PostMapping("dead-letters/{id}/replay")
+    public Result replayDeadLetter(@PathVariable("id") String id) {
+        return voucherOrderService.replayDeadLetter(id) ? Result.ok() : Result.fail(MessageConstants.DEAD_LETTER_NOT_EXIST);
+    }
+}
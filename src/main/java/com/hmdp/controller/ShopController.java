@@ -6,7 +6,10 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.ResponseCache;
 import com.hmdp.utils.SystemConstants;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -26,14 +29,17 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private ResponseCache responseCache;
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
-     * @return 商铺详情数据
+     * @return 商铺详情数据，命中响应缓存时直接返回序列化好的字节
      */
     @GetMapping("/{id}")
-    public Result queryShopById(@PathVariable("id") Long id) {
-        return shopService.queryById(id);
+    public ResponseEntity<byte[]> queryShopById(@PathVariable("id") Long id) {
+        return responseCache.get(RedisConstants.CACHE_SHOP_KEY + id, () -> shopService.queryById(id));
     }
 
     /**
@@ -43,10 +49,7 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -1,9 +1,11 @@
 package com.hmdp.controller;
 
 
-import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.ResponseCache;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
@@ -25,9 +27,16 @@ public class ShopTypeController {
     @Resource
     private IShopTypeService typeService;
 
-    @GetMapping("list")
-    public Result queryTypeList() {
+    @Resource
+    private ResponseCache responseCache;
 
-        return typeService.queryShopTypeList();
+    /**
+     * 店铺类型不经过CacheClient读写，也没有修改接口，响应缓存不会被主动删除，只靠RESPONSE_CACHE_TTL过期
+     * 直接改数据库中的店铺类型后，各节点最多返回RESPONSE_CACHE_TTL的旧数据（redis中的列表还要等CACHE_SHOP_TYPE_TTL）
+     * @return
+     */
+    @GetMapping("list")
+    public ResponseEntity<byte[]> queryTypeList() {
+        return responseCache.get(RedisConstants.CACHE_SHOP_TYPE_KEY, () -> typeService.queryShopTypeList());
     }
 }
@@ -0,0 +1,40 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.MessageConstants;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 优惠券的运维接口，只有带着运维口令的请求才能访问
+ * </p>
+ */
+@RestController
+@RequestMapping("/admin/voucher")
+public class VoucherAdminController {
+
+    @Resource
+    private IVoucherService voucherService;
+
+    /**
+     * 补充秒杀券库存
+     * @param voucherId 优惠券id
+     * @param amount 增加的库存
+     * @return
+     */
+    @PutMapping("seckill/{id}/stock")
+    public Result addSeckillStock(@PathVariable("id") Long voucherId, @RequestParam("amount") Integer amount) {
+        if (amount == null || amount <= 0) {
+            return Result.fail(MessageConstants.SECKILL_STOCK_AMOUNT_INVALID);
+        }
+        return voucherService.addSeckillStock(voucherId, amount) ? Result.ok() : Result.fail(MessageConstants.VOUCHER_NOT_EXIST);
+    }
+}
@@ -4,6 +4,9 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.ResponseCache;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -23,6 +26,9 @@ public class VoucherController {
     @Resource
     private IVoucherService voucherService;
 
+    @Resource
+    private ResponseCache responseCache;
+
     /**
      * 新增普通券
      * @param voucher 优惠券信息
@@ -30,7 +36,7 @@ public class VoucherController {
      */
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
-        voucherService.save(voucher);
+        voucherService.addVoucher(voucher);
         return Result.ok(voucher.getId());
     }
 
@@ -48,10 +54,10 @@ public class VoucherController {
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
-     * @return 优惠券列表
+     * @return 优惠券列表，命中响应缓存时直接返回序列化好的字节
      */
     @GetMapping("/list/{shopId}")
-    public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId) {
-       return voucherService.queryVoucherOfShop(shopId);
+    public ResponseEntity<byte[]> queryVoucherOfShop(@PathVariable("shopId") Long shopId) {
+       return responseCache.get(RedisConstants.CACHE_VOUCHER_LIST_KEY + shopId, () -> voucherService.queryVoucherOfShop(shopId));
     }
 }
@@ -0,0 +1,33 @@
+package com.hmdp.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.Map;
+
+/**
+ * 某个key前缀的缓存指标
+ */
+
+@Builder
+@Data
+public class CacheStats {
+    private Long localHits;     // 本地缓存命中次数
+    private Long redisHits;     // redis命中次数
+    private Long nullHits;      // 命中空值的次数
+    private Long misses;        // 未命中次数
+    private Double hitRate;     // 命中率（包括空值）
+    private Long staleServes;   // 返回已过期数据的次数
+    private Long lockContention;    // 抢重建锁失败的次数
+    private Long bloomRejects;  // 被布隆过滤器拦截的次数
+    private Long loads;         // 查询数据库的次数
+    private Long loadFailures;  // 查询数据库失败的次数
+    private Long loadAvgMillis; // 查询数据库的平均耗时
+    private Long loadP99Millis; // 查询数据库耗时的P99（所在桶的上界，-1表示超过最大的桶）
+    private Map<String, Long> loadLatency;  // 查询数据库的耗时分布
+    private Long compressions;  // 超过阈值、尝试压缩的次数
+    private Double compressionRatio;    // 压缩后/压缩前的字节数，越小越好
+    private Long compressAvgMicros;     // 平均每次压缩的耗时（微秒）
+    private Long decompressions;    // 解压次数
+    private Long decompressAvgMicros;   // 平均每次解压的耗时（微秒）
+}
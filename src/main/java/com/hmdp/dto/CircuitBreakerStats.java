@@ -0,0 +1,22 @@
+package com.hmdp.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * redis熔断器的状态和统计指标
+ */
+
+@Builder
+@Data
+public class CircuitBreakerStats {
+    private String state;       // 当前状态：CLOSED/OPEN/HALF_OPEN
+    private Long stateSince;    // 进入当前状态的时间戳（毫秒）
+    private Integer consecutiveFailures;    // 当前连续失败次数
+    private Long calls;         // 放行的调用次数
+    private Long failures;      // 失败次数（包括慢调用）
+    private Long shed;          // 熔断期间被拒绝的调用次数
+    private Long opened;        // 进入打开状态的次数
+    private Long halfOpened;    // 进入半开状态的次数
+    private Long closed;        // 恢复为关闭状态的次数
+}
@@ -0,0 +1,21 @@
+package com.hmdp.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * 死信队列中的订单消息
+ */
+
+@Builder
+@Data
+public class DeadLetterOrder {
+    private String id;              // 死信队列中的消息id，重放时使用
+    private Long orderId;           // 订单id
+    private Long userId;
+    private Long voucherId;
+    private String sourceStream;    // 原来所在的分区
+    private String sourceId;        // 原来的消息id
+    private Long deliveries;        // 投递次数
+    private String error;           // 最后一次处理失败的异常
+}
@@ -0,0 +1,19 @@
+package com.hmdp.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * 堆外缓存的使用情况
+ */
+
+@Builder
+@Data
+public class OffHeapStats {
+    private Long entries;       // 条目数
+    private Long usedBytes;     // 有效数据占用的字节数
+    private Long capacityBytes; // 总容量（字节）
+    private Long evictions;     // 因空间不足被淘汰的条目数
+    private Long hits;          // 命中次数
+    private Long misses;        // 未命中次数
+}
@@ -0,0 +1,23 @@
+package com.hmdp.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * 缓存重建调度器的统计指标
+ */
+
+@Builder
+@Data
+public class RebuildStats {
+    private Integer queueSize;  // 排队中的任务数
+    private Integer active;     // 正在执行的任务数
+    private Integer concurrencyLimit;   // 当前并发上限
+    private Long submitted;     // 提交成功的任务数
+    private Long deduplicated;  // 因同一个key已在重建而丢弃的任务数
+    private Long rejected;      // 因队列已满而丢弃的任务数
+    private Long succeeded;     // 成功次数
+    private Long failed;        // 失败次数
+    private Long avgLatency;    // 平均耗时（毫秒）
+    private Long maxLatency;    // 最大耗时（毫秒）
+}
@@ -0,0 +1,21 @@
+package com.hmdp.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * 提前刷新调度器的统计指标
+ */
+
+@Builder
+@Data
+public class RefreshAheadStats {
+    private Integer pending;        // 时间轮中等待刷新的key数
+    private Integer inFlight;       // 正在查询数据库的个数
+    private Long scheduled;         // 安排刷新的次数
+    private Long cancelled;         // 到期前跌出前N名而取消的次数
+    private Long refreshed;         // 查询数据库刷新的次数
+    private Long skipped;           // 到期时其它节点已经刷新过、没有拿到锁或者重建队列已满而跳过的次数
+    private Long deferred;          // 数据库并发额度用完而推迟的次数
+    private Long failed;            // 刷新失败次数
+}
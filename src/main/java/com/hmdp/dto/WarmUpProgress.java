@@ -0,0 +1,19 @@
+package com.hmdp.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * 缓存预热进度
+ */
+
+@Builder
+@Data
+public class WarmUpProgress {
+    private Long total;     // 店铺总数
+    private Long loaded;    // 已预热的店铺数
+    private Boolean finished;   // 是否预热完成（包括redis已经预热过而跳过）
+    private Boolean skipped;    // redis已经预热过，本节点没有重复预热
+    private Boolean failed;     // 上一次预热是否失败，失败后定时重试
+    private Long elapsed;   // 已耗时（毫秒）
+}
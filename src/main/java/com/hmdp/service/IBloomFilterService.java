@@ -0,0 +1,21 @@
+package com.hmdp.service;
+
+/**
+ * <p>
+ *  布隆过滤器服务类，负责布隆过滤器的初始化、全量重建和本地镜像同步
+ * </p>
+ */
+public interface IBloomFilterService {
+
+    /**
+     * 从数据库流式读取所有店铺id，全量重建店铺布隆过滤器
+     * @return 重建的元素个数
+     */
+    long rebuildShopFilter();
+
+    /**
+     * 从数据库流式读取所有笔记id，全量重建笔记布隆过滤器
+     * @return 重建的元素个数
+     */
+    long rebuildBlogFilter();
+}
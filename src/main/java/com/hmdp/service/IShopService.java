@@ -16,7 +16,13 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    Result saveShop(Shop shop);
+
     Result update(Shop shop);
 
+    void incrementSold(Long id, int delta);
+
+    void incrementComments(Long id, int delta);
+
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
 }
@@ -0,0 +1,21 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.WarmUpProgress;
+
+/**
+ * <p>
+ *  店铺缓存预热服务类
+ * </p>
+ */
+public interface IShopWarmUpService {
+
+    /**
+     * 预热所有店铺的逻辑过期缓存和按类型分组的geo索引
+     */
+    void warmUp();
+
+    /**
+     * 查询预热进度
+     */
+    WarmUpProgress getProgress();
+}
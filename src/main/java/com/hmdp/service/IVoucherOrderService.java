@@ -1,10 +1,13 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.DeadLetterOrder;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -18,4 +21,10 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckillVoucher(Long voucherId);
 
     void createVoucherOrder(VoucherOrder voucherOrder);
+
+    int createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    List<DeadLetterOrder> queryDeadLetters(Integer count);
+
+    boolean replayDeadLetter(String id);
 }
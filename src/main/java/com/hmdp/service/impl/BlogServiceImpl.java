@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
@@ -9,25 +8,29 @@ import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
 import com.hmdp.utils.MessageConstants;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.MessageConstants.BLOG_NOT_EXIST;
@@ -52,6 +55,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private IFollowService followService;
+    @Resource
+    private RedisBloomFilter blogBloomFilter;
 
     /**
      * 查看热门笔记
@@ -67,11 +72,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            queryBlogUser(blog);
-            isBlogLiked(blog);
-        });
+        // 查询用户，一页的笔记批量查，不再每篇笔记查一次
+        queryBlogUsers(records);
+        isBlogsLiked(records);
         return Result.ok(records);
     }
 
@@ -83,6 +86,11 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      */
     @Override
     public Result queryBlogById(Long id) {
+        // 0. 布隆过滤器判断不存在，直接返回，不查数据库
+        if (!blogBloomFilter.mightContain(id)) {
+            return Result.fail(BLOG_NOT_EXIST);
+        }
+
         // 1. 查询blog基本信息
         Blog blog = getById(id);
         if (blog == null) {
@@ -90,7 +98,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
 
         // 2. 查询发布该blog的用户，将昵称和头像存入blog
-        queryBlogUser(blog);
+        queryBlogUsers(Collections.singletonList(blog));
 
         // 3. 查询该笔记是否被该用户点过赞了
         isBlogLiked(blog);
@@ -118,6 +126,33 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     }
 
 
+    /**
+     * 批量查询一批笔记是否被当前用户点过赞了，多个ZSCORE用管道一次发出去
+     * @param blogs
+     */
+    private void isBlogsLiked(List<Blog> blogs) {
+        // 1. 获取当前登录用户
+        UserDTO user = UserHolder.getUser();
+        if (user == null || blogs.isEmpty()) { // 当前未登录，则不高亮显示点赞，isLike保持默认false即可
+            return;
+        }
+
+        // 2. 管道批量查询当前用户在每篇笔记点赞集合中的score
+        byte[] member = user.getId().toString().getBytes(StandardCharsets.UTF_8);
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Blog blog : blogs) {
+                connection.zScore((BLOG_LIKED_KEY + blog.getId()).getBytes(StandardCharsets.UTF_8), member);
+            }
+            return null;
+        });
+
+        // 3. 查得到score就代表点过赞
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
+    }
+
+
     /**
      * 点赞笔记
      * @param id
@@ -182,13 +217,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .collect(Collectors.toList());
 
         // 3. 根据用户id查询用户（不要将用户所有信息都返回，而应该只返回UserDTO）
-        // userService.listByIds(ids)这样查出的是按照id大小顺序的5个用户
-        // 要想保持原来在zset中的顺序，需要加order by， WHERE id IN (5,1) ORDER BY (id, 5, 1)
-        String idStr = StrUtil.join(",", ids);  // 5,1
-        List<UserDTO> userDTOList = userService.query().in("id", ids).last("ORDER BY FIELD(id,"+ idStr +")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        // 走缓存批量查询，结果保持原来在zset中的顺序
+        List<UserDTO> userDTOList = userService.queryUserDTOsByIds(ids);
 
         // 4. 返回
         return Result.ok(userDTOList);
@@ -211,6 +241,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!success) {
             return Result.fail(DATABASE_ERROR);
         }
+        // 加入布隆过滤器
+        blogBloomFilter.put(blog.getId());
 
         // 3. 查询笔记作者的所有粉丝 select * from tb_follow where follow_user_id = ?
         List<Follow> follows = followService.query().eq("follow_user_id", userId).list();
@@ -231,14 +263,29 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
 
     /**
-     * 查询发布该blog的用户，将昵称和头像存入blog
-     * @param blog
+     * 批量查询发布这些blog的用户，将昵称和头像存入blog
+     * @param blogs
      */
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    private void queryBlogUsers(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        // 1. 收集作者id，一次批量查询
+        List<Long> userIds = blogs.stream()
+                .map(Blog::getUserId)
+                .distinct()
+                .collect(Collectors.toList());
+        Map<Long, UserDTO> userMap = userService.queryUserDTOsByIds(userIds).stream()
+                .collect(Collectors.toMap(UserDTO::getId, Function.identity()));
+
+        // 2. 将昵称和头像存入blog
+        for (Blog blog : blogs) {
+            UserDTO user = userMap.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
     }
 
 
@@ -287,12 +334,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         String idStr = StrUtil.join(",", blogIds);
         List<Blog> blogs = query().in("id", blogIds).last("ORDER BY FIELD(id," + idStr + ")").list();
 
-        // 6. 仍然要查写blog的用户以及自己是否给blog点过赞
-        blogs.stream()
-                .forEach(blog -> {
-                    queryBlogUser(blog);
-                    isBlogLiked(blog);
-                });
+        // 6. 仍然要查写blog的用户以及自己是否给blog点过赞（都是批量查询）
+        queryBlogUsers(blogs);
+        isBlogsLiked(blogs);
 
         // 6. 封装结果并返回
         ScrollResult result = ScrollResult.builder()
@@ -0,0 +1,146 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IBloomFilterService;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>
+ *  布隆过滤器服务实现类
+ *  启动时从redis加载布隆过滤器到本地，redis中没有则从数据库全量重建
+ *  定时从redis同步本地镜像（兜底丢失的发布订阅消息），每天凌晨全量重建一次（清理已删除的id）
+ * </p>
+ */
+@Slf4j
+@Service
+public class BloomFilterServiceImpl implements IBloomFilterService, ApplicationRunner {
+
+    @Resource
+    private RedisBloomFilter shopBloomFilter;
+    @Resource
+    private RedisBloomFilter blogBloomFilter;
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private BlogMapper blogMapper;
+    @Resource
+    private RedissonClient redissonClient;
+
+    /**
+     * 项目启动后初始化布隆过滤器
+     * @param args
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!shopBloomFilter.loadFromRedis()) {
+            rebuildShopFilter();
+        }
+        if (!blogBloomFilter.loadFromRedis()) {
+            rebuildBlogFilter();
+        }
+    }
+
+    @Override
+    public long rebuildShopFilter() {
+        return rebuild(shopBloomFilter, shopMapper);
+    }
+
+    @Override
+    public long rebuildBlogFilter() {
+        return rebuild(blogBloomFilter, blogMapper);
+    }
+
+    /**
+     * 每天凌晨4点全量重建
+     */
+    @Scheduled(cron = "0 0 4 * * ?")
+    public void scheduledRebuild() {
+        rebuildShopFilter();
+        rebuildBlogFilter();
+    }
+
+    /**
+     * 每5分钟从redis同步一次本地镜像
+     */
+    @Scheduled(fixedDelay = 5 * 60 * 1000L, initialDelay = 5 * 60 * 1000L)
+    public void reloadFromRedis() {
+        shopBloomFilter.loadFromRedis();
+        blogBloomFilter.loadFromRedis();
+    }
+
+    /**
+     * 全量重建布隆过滤器，多个节点同时触发时只让一个节点重建，其它节点之后从redis同步即可
+     */
+    private <T> long rebuild(RedisBloomFilter filter, BaseMapper<T> mapper) {
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_KEY_PREFIX + filter.getKey());
+        boolean isLock = lock.tryLock();
+        if (!isLock) {
+            log.info("其它节点正在重建布隆过滤器，key = {}", filter.getKey());
+            return 0;
+        }
+        try {
+            return filter.rebuild(streamIds(mapper));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 按id游标分批读取表中所有的id，不会一次性把整张表加载到内存
+     * select id from tb_xxx where id > ? order by id limit ?
+     */
+    private <T> Iterable<Long> streamIds(BaseMapper<T> mapper) {
+        return () -> new Iterator<Long>() {
+            private List<Object> batch = Collections.emptyList();
+            private int index = 0;
+            private long lastId = 0;
+            private boolean finished = false;
+
+            @Override
+            public boolean hasNext() {
+                if (index < batch.size()) {
+                    return true;
+                }
+                if (finished) {
+                    return false;
+                }
+                // 当前批次读完了，读下一批
+                batch = mapper.selectObjs(new QueryWrapper<T>()
+                        .select("id")
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("limit " + SystemConstants.BLOOM_REBUILD_BATCH_SIZE));
+                index = 0;
+                finished = batch.size() < SystemConstants.BLOOM_REBUILD_BATCH_SIZE;
+                return !batch.isEmpty();
+            }
+
+            @Override
+            public Long next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                lastId = ((Number) batch.get(index++)).longValue();
+                return lastId;
+            }
+        };
+    }
+}
@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
@@ -120,11 +119,8 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         // 3. 解析出共同关注的id
         List<Long> ids = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
 
-        // 4. 根据id查询用户
-        List<UserDTO> userDTOS = userService.listByIds(ids)
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        // 4. 根据id批量查询用户（走缓存）
+        List<UserDTO> userDTOS = userService.queryUserDTOsByIds(ids);
 
         return Result.ok(userDTOS);
     }
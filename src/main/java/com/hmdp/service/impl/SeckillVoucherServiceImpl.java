@@ -4,8 +4,23 @@ import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SoldOutGate;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -14,7 +29,97 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    private static final DefaultRedisScript<Long> PREHEAT_SCRIPT;
+    private static final DefaultRedisScript<Long> RESTOCK_SCRIPT;
+
+    static {
+        PREHEAT_SCRIPT = new DefaultRedisScript<>();
+        PREHEAT_SCRIPT.setLocation(new ClassPathResource("seckill_preheat.lua"));
+        PREHEAT_SCRIPT.setResultType(Long.class);
+        RESTOCK_SCRIPT = new DefaultRedisScript<>();
+        RESTOCK_SCRIPT.setLocation(new ClassPathResource("seckill_restock.lua"));
+        RESTOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SoldOutGate soldOutGate;
+
+    /**
+     * 把秒杀券的库存和时间窗口写入redis的hash，秒杀脚本据此判断是否在秒杀时间内
+     * 已经写入过的只更新时间窗口，不覆盖redis中的库存；hash在秒杀结束SECKILL_VOUCHER_RETENTION之后过期
+     * @param seckillVoucher
+     * @return 是否是第一次写入
+     */
+    @Override
+    public boolean preheat(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        long endAt = toMillis(seckillVoucher.getEndTime());
+        Long result = stringRedisTemplate.execute(PREHEAT_SCRIPT,
+                Arrays.asList(RedisConstants.SECKILL_VOUCHER_KEY + voucherId, RedisConstants.SECKILL_STOCK_KEY + voucherId),
+                seckillVoucher.getStock().toString(),
+                String.valueOf(toMillis(seckillVoucher.getBeginTime())),
+                String.valueOf(endAt),
+                String.valueOf(endAt + SystemConstants.SECKILL_VOUCHER_RETENTION));
+        boolean created = result != null && result == 1;
+        if (created) {
+            // 预热之前的请求可能已经把这张券标记为售罄了
+            soldOutGate.reset(voucherId);
+        }
+        return created;
+    }
+
+    /**
+     * 增加redis中的库存，还没有预热成hash的增加旧版本的库存key
+     * 两个都不存在（还没有预热过）时从数据库预热，必须在数据库加库存的事务提交之后调用，读到的库存已经包含这次增加的
+     * @param voucherId
+     * @param amount
+     */
+    @Override
+    public void incrementStock(Long voucherId, Integer amount) {
+        Long stock = stringRedisTemplate.execute(RESTOCK_SCRIPT,
+                Arrays.asList(RedisConstants.SECKILL_VOUCHER_KEY + voucherId, RedisConstants.SECKILL_STOCK_KEY + voucherId),
+                amount.toString());
+        if (stock == null) {
+            SeckillVoucher seckillVoucher = getById(voucherId);
+            if (seckillVoucher != null) {
+                preheat(seckillVoucher);
+            }
+        }
+    }
+
+    /**
+     * 定时预热即将开始和正在进行的秒杀券，开始前SECKILL_PREHEAT_AHEAD就写入redis
+     * 覆盖直接写入数据库的秒杀券、redis数据丢失等情况；多个节点同时执行也只会写入一次
+     */
+    @Scheduled(fixedRate = SystemConstants.SECKILL_PREHEAT_INTERVAL)
+    public void preheatUpcoming() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = query()
+                .gt("end_time", now)
+                .le("begin_time", now.plus(Duration.ofMillis(SystemConstants.SECKILL_PREHEAT_AHEAD)))
+                .list();
+        int created = 0;
+        for (SeckillVoucher voucher : vouchers) {
+            try {
+                if (preheat(voucher)) {
+                    created++;
+                }
+            } catch (Exception e) {
+                log.error("预热秒杀券失败，voucherId = {}", voucher.getVoucherId(), e);
+            }
+        }
+        if (created > 0) {
+            log.info("预热秒杀券完成，新写入 {} 张", created);
+        }
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
 }
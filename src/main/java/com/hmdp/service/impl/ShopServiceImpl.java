@@ -16,17 +16,17 @@ import org.springframework.boot.autoconfigure.cache.CacheProperties;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -50,6 +50,21 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private RedisBloomFilter shopBloomFilter;
+
+    @Resource
+    private RefreshAheadScheduler refreshAheadScheduler;
+
+    /**
+     * 最热的店铺在逻辑过期之前提前刷新，和queryById使用相同的key、锁和过期时间
+     */
+    @PostConstruct
+    private void registerRefreshAhead() {
+        refreshAheadScheduler.register(RedisConstants.CACHE_SHOP_KEY, RedisConstants.LOCK_SHOP_KEY,
+                this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
+
     /**
      * 根据id查询商铺详情信息
      * @param id
@@ -65,6 +80,13 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
         // 在解决缓存穿透的基础上用互斥锁解决缓存击穿
         // Shop shop = queryWithMutex(id);
+        // 封装了缓存工具后可以这么写（本节点内的并发请求会先合并，不再递归休眠重试）
+        // Shop shop = cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+        //         RedisConstants.LOCK_SHOP_KEY, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
+        // 概率性提前刷新解决缓存击穿，同一批写入的店铺会在过期前被分散刷新
+        // Shop shop = cacheClient.queryWithEarlyRefresh(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+        //         RedisConstants.LOCK_SHOP_KEY, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         // 逻辑过期解决缓存击穿
         // Shop shop = queryWithLogicalExpire(id);
@@ -160,8 +182,17 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
 
-    // 线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    // 事务提交后删除/刷新缓存
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+
+    // 缓存重建调度器
+    @Resource
+    private CacheRebuildScheduler cacheRebuildScheduler;
+
+    // 店铺的hash缓存，列表页按字段读取
+    @Resource
+    private HashCacheClient hashCacheClient;
 
 
     /**
@@ -219,19 +250,21 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
                 return shop;
             }
 
-            // 6.4 DoubleCheck后如果redis缓存仍是过期的，则开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+            // 6.4 DoubleCheck后如果redis缓存仍是过期的，则提交给重建调度器，实现缓存重建
+            boolean submitted = cacheRebuildScheduler.submit(key, () -> {
                 try {
                     // 缓存重建
                     this.saveShop2Redis(id, 20L);
-                } catch (Exception e) {
+                } catch (InterruptedException e) {
                     throw new RuntimeException(e);
                 } finally { // 释放锁要放在finally里面确保一定会执行
                     // 释放互斥锁
                     unLock(lockKey);
                 }
-
             });
+            if (!submitted) {
+                unLock(lockKey);
+            }
         }
 
         // 7. 无论是否获取锁成功，这里都返回过期的商铺信息
@@ -304,6 +337,40 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
 
+    /**
+     * 新增商铺信息，同时把店铺id加入布隆过滤器，事务提交后写入逻辑过期缓存和geo索引
+     * 店铺缓存用的是逻辑过期，没有缓存的店铺查询时直接返回不存在；预热标记存在时之后的预热也不会补上，所以新增时就要写入
+     * @param shop
+     * @return 店铺id
+     */
+    @Override
+    @Transactional
+    public Result saveShop(Shop shop) {
+        // 1. 写入数据库
+        boolean success = save(shop);
+        if (!success) {
+            return Result.fail(MessageConstants.DATABASE_ERROR);
+        }
+        Long id = shop.getId();
+
+        // 2. 加入布隆过滤器，否则新店铺会被当成不存在的店铺拦截掉
+        shopBloomFilter.put(id);
+
+        // 3. 事务提交后从数据库读取并写入逻辑过期缓存，和更新店铺一样带版本号写入
+        cacheInvalidator.refresh(RedisConstants.CACHE_SHOP_KEY + id, () -> getById(id),
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
+        // 4. 事务提交后加入geo索引，否则按距离查询的列表中没有这个店铺
+        if (shop.getX() != null && shop.getY() != null) {
+            cacheInvalidator.runAfterCommit(() -> stringRedisTemplate.opsForGeo()
+                    .add(SHOP_GEO_KEY + shop.getTypeId(), new Point(shop.getX(), shop.getY()), id.toString()));
+        }
+
+        // 5. 返回店铺id
+        return Result.ok(id);
+    }
+
+
     /**
      * 更新商铺信息
      * @param shop
@@ -320,12 +387,55 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 1. 先更新数据库
         updateById(shop);
 
-        // 2. 再删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        // 2. 事务提交后再刷新缓存，并延迟一段时间再刷新一次（延迟双删）
+        // 店铺缓存用的是逻辑过期，删除后查询会直接返回空，因此不是删除，而是重新查询数据库覆盖写入，并通知各节点删除本地缓存
+        cacheInvalidator.refresh(RedisConstants.CACHE_SHOP_KEY + id, () -> getById(id),
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        // hash缓存只写这次更新的字段
+        cacheInvalidator.runAfterCommit(() -> hashCacheClient.updateFields(RedisConstants.CACHE_SHOP_HASH_KEY + id, shop));
 
         return Result.ok();
     }
 
+
+    /**
+     * 店铺销量加减
+     * @param id
+     * @param delta
+     */
+    @Override
+    @Transactional
+    public void incrementSold(Long id, int delta) {
+        incrementCounter(id, "sold", delta);
+    }
+
+
+    /**
+     * 店铺评论数加减
+     * @param id
+     * @param delta
+     */
+    @Override
+    @Transactional
+    public void incrementComments(Long id, int delta) {
+        incrementCounter(id, "comments", delta);
+    }
+
+
+    /**
+     * 计数器加减：数据库中原子加减，事务提交后hash缓存中只改这一个字段，不删除也不重建整个缓存
+     * 店铺详情的缓存（逻辑过期）不受影响，其中的计数器在下一次重建时更新
+     * @param id
+     * @param field 字段名，和列名相同
+     * @param delta
+     */
+    private void incrementCounter(Long id, String field, int delta) {
+        boolean success = update().setSql(field + " = " + field + " + " + delta).eq("id", id).update();
+        if (success) {
+            cacheInvalidator.runAfterCommit(() -> hashCacheClient.increment(RedisConstants.CACHE_SHOP_HASH_KEY + id, field, delta));
+        }
+    }
+
     /**
      * 查询某类型的商户列表
      * @param typeId
@@ -384,9 +494,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
                     distanceMap.put(shopId, distance);
                 });
 
-        // 5. 根据shopId查询shop
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();   // 要保持顺序
+        // 5. 根据shopId查询shop，按列表页需要的字段从hash缓存批量读取
+        List<Shop> shops = queryShopsForList(ids);
         for (Shop shop : shops) {
             shop.setDistance(distanceMap.get(shop.getId()));
         }
@@ -396,6 +505,44 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
 
+    /**
+     * 批量查询列表页的店铺：先用管道HMGET从hash缓存读取列表页需要的字段，没有缓存的一次查数据库后整体回填
+     * @param ids
+     * @return 和ids顺序一致，数据库中也不存在的店铺跳过
+     */
+    private List<Shop> queryShopsForList(List<Long> ids) {
+        // 1. 从hash缓存读取
+        List<String> keys = ids.stream().map(id -> RedisConstants.CACHE_SHOP_HASH_KEY + id).collect(Collectors.toList());
+        List<Shop> shops = hashCacheClient.multiGet(keys, Shop.class, SystemConstants.SHOP_LIST_FIELDS);
+
+        // 2. 没有缓存的查数据库并回填
+        List<Long> missIds = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (shops.get(i) == null) {
+                missIds.add(ids.get(i));
+            }
+        }
+        if (!missIds.isEmpty()) {
+            // 先读版本号再查数据库，回填期间计数器或字段被更新过则放弃回填
+            Map<String, Long> versions = hashCacheClient.readVersions(missIds.stream()
+                    .map(id -> RedisConstants.CACHE_SHOP_HASH_KEY + id).collect(Collectors.toList()));
+            Map<Long, Shop> loaded = listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, shop -> shop));
+            Map<String, Shop> values = new HashMap<>(loaded.size() * 2);
+            loaded.forEach((id, shop) -> values.put(RedisConstants.CACHE_SHOP_HASH_KEY + id, shop));
+            hashCacheClient.setBatch(values, versions, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            for (int i = 0; i < ids.size(); i++) {
+                if (shops.get(i) == null) {
+                    shops.set(i, loaded.get(ids.get(i)));
+                }
+            }
+        }
+
+        // 3. 去掉数据库中也不存在的
+        shops.removeIf(Objects::isNull);
+        return shops;
+    }
+
+
     /**
      * 将店铺信息添加到redis
      * 逻辑过期解决缓存击穿
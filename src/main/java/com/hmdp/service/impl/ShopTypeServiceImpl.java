@@ -8,6 +8,7 @@ import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.MessageConstants;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.TtlPolicyRegistry;
 import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
@@ -32,6 +33,9 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private TtlPolicyRegistry ttlPolicyRegistry;
+
 
     /**
      * 查询商铺类型列表
@@ -65,7 +69,9 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
                 .map(type -> JSONUtil.toJsonStr(type))
                 .collect(Collectors.toList());
         stringRedisTemplate.opsForList().rightPushAll(key, jsonTypeList);
-        stringRedisTemplate.expire(key, RedisConstants.CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES);
+        // 过期时间按策略打散
+        long ttlMillis = ttlPolicyRegistry.ttlMillis(key, RedisConstants.CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES);
+        stringRedisTemplate.expire(key, ttlMillis, TimeUnit.MILLISECONDS);
 
         return Result.ok(typeList);
     }
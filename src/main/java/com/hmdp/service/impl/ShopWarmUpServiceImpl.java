@@ -0,0 +1,235 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.dto.WarmUpProgress;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopWarmUpService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisCircuitBreaker;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ *  店铺缓存预热服务实现类
+ *  项目启动时按id游标分页读取tb_shop，每一页交给线程池用管道批量写入店铺的逻辑过期缓存和geo索引
+ *  预热在ApplicationRunner中同步执行，预热完成之前 /health/readiness 返回503，负载均衡不会把流量转发到还没预热的节点
+ *  redis是所有节点共享的，同一时刻只有一个节点预热，预热完成后写入标记，之后启动的节点看到标记直接跳过
+ *  预热失败（比如redis不可用）不影响启动，节点保持不就绪，定时重试直到成功
+ * </p>
+ */
+@Slf4j
+@Service
+public class ShopWarmUpServiceImpl implements IShopWarmUpService, ApplicationRunner {
+
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    // 是否在启动时预热，本地调试时可以关掉
+    @Value("${hmdp.warm-up.enabled:true}")
+    private boolean enabled;
+
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong loaded = new AtomicLong();
+    private volatile boolean finished = false;
+    private volatile boolean skipped = false;
+    private volatile boolean failed = false;
+    private volatile long beginTime;
+    private volatile long endTime;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            finished = true;
+            return;
+        }
+        tryWarmUp();
+    }
+
+    /**
+     * 预热失败后定时重试，成功之前节点一直不就绪
+     */
+    @Scheduled(fixedDelay = SystemConstants.WARM_UP_RETRY_INTERVAL, initialDelay = SystemConstants.WARM_UP_RETRY_INTERVAL)
+    public void retryIfFailed() {
+        if (failed) {
+            tryWarmUp();
+        }
+    }
+
+    private void tryWarmUp() {
+        try {
+            warmUp();
+            failed = false;
+        } catch (RuntimeException e) {
+            failed = true;
+            log.error("店铺缓存预热失败，{} ms后重试", SystemConstants.WARM_UP_RETRY_INTERVAL, e);
+        }
+    }
+
+    @Override
+    public void warmUp() {
+        finished = false;
+        skipped = false;
+        beginTime = System.currentTimeMillis();
+
+        // 1. 同一时刻只有一个节点预热，其它节点等它完成后看到标记直接跳过
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_KEY_PREFIX + RedisConstants.SHOP_WARM_UP_KEY);
+        boolean isLock;
+        try {
+            isLock = lock.tryLock(SystemConstants.WARM_UP_LOCK_WAIT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待店铺缓存预热锁被中断", e);
+        }
+        if (!isLock) {
+            throw new IllegalStateException("等待其它节点预热店铺缓存超时");
+        }
+        try {
+            // 2. redis已经预热过，不再重复预热
+            if (BooleanUtil.isTrue(redisCircuitBreaker.execute(() -> stringRedisTemplate.hasKey(RedisConstants.SHOP_WARM_UP_KEY)))) {
+                skipped = true;
+                endTime = System.currentTimeMillis();
+                finished = true;
+                log.info("店铺缓存已经预热过，跳过预热");
+                return;
+            }
+            doWarmUp();
+            // 3. 写入预热标记后才算完成
+            redisCircuitBreaker.run(() -> stringRedisTemplate.opsForValue().set(RedisConstants.SHOP_WARM_UP_KEY,
+                    String.valueOf(endTime), RedisConstants.SHOP_WARM_UP_TTL, TimeUnit.MINUTES));
+            finished = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void doWarmUp() {
+        total.set(shopService.count());
+        loaded.set(0);
+        log.info("开始预热店铺缓存，店铺总数 = {}", total.get());
+
+        // 读数据库是单线程按游标顺序读的，写redis交给线程池并行，队列满了由读线程自己写，防止读得太快把内存撑爆
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                SystemConstants.WARM_UP_THREADS, SystemConstants.WARM_UP_THREADS,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(SystemConstants.WARM_UP_THREADS * 2),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            // 1. 按id游标分页读取 select * from tb_shop where id > ? order by id limit ?
+            long lastId = 0;
+            while (true) {
+                List<Shop> page = shopService.query()
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("limit " + SystemConstants.WARM_UP_PAGE_SIZE)
+                        .list();
+                if (page.isEmpty()) {
+                    break;
+                }
+                lastId = page.get(page.size() - 1).getId();
+
+                // 2. 交给线程池写入redis
+                futures.add(executor.submit(() -> writePage(page)));
+
+                if (page.size() < SystemConstants.WARM_UP_PAGE_SIZE) {
+                    break;
+                }
+            }
+
+            // 3. 等待所有页写完，有一页失败则整个预热失败，节点保持不就绪，不会带着冷缓存对外提供服务
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("店铺缓存预热被中断", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("店铺缓存预热失败", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        endTime = System.currentTimeMillis();
+        log.info("店铺缓存预热完成，共 {} 个店铺，耗时 {} ms", loaded.get(), endTime - beginTime);
+    }
+
+    /**
+     * 用管道写入一页店铺的geo索引和逻辑过期缓存
+     */
+    private void writePage(List<Shop> page) {
+        // 1. 写入geo索引，按类型分组，一个类型一条GEOADD
+        Map<Long, List<Shop>> byType = page.stream()
+                .filter(shop -> shop.getX() != null && shop.getY() != null)
+                .collect(Collectors.groupingBy(Shop::getTypeId));
+        redisCircuitBreaker.run(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byType.forEach((typeId, shops) -> {
+                Map<byte[], Point> locations = new HashMap<>(shops.size() * 2);
+                for (Shop shop : shops) {
+                    locations.put(shop.getId().toString().getBytes(StandardCharsets.UTF_8), new Point(shop.getX(), shop.getY()));
+                }
+                connection.geoAdd((RedisConstants.SHOP_GEO_KEY + typeId).getBytes(StandardCharsets.UTF_8), locations);
+            });
+            return null;
+        }));
+
+        // 2. 写入逻辑过期缓存
+        Map<String, Shop> values = new HashMap<>(page.size() * 2);
+        for (Shop shop : page) {
+            values.put(RedisConstants.CACHE_SHOP_KEY + shop.getId(), shop);
+        }
+        // redis不可用时抛出异常，这一页失败，整个预热失败，不会在缓存还是冷的时候写入预热标记
+        cacheClient.setWithLogicalExpireBatch(values, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
+        // 3. 记录进度
+        long done = loaded.addAndGet(page.size());
+        log.debug("店铺缓存预热进度 {}/{}", done, total.get());
+    }
+
+    @Override
+    public WarmUpProgress getProgress() {
+        long now = finished ? endTime : System.currentTimeMillis();
+        return WarmUpProgress.builder()
+                .total(total.get())
+                .loaded(loaded.get())
+                .finished(finished)
+                .skipped(skipped)
+                .failed(failed)
+                .elapsed(beginTime == 0 ? 0 : now - beginTime)
+                .build();
+    }
+}
@@ -11,6 +11,7 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.SystemConstants;
@@ -28,6 +29,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -46,6 +49,9 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
     /**
      * 发送验证码
      * @param phone
@@ -227,4 +233,23 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
         return Result.ok(count);
     }
+
+
+    /**
+     * 根据一批id查询用户的公开信息（昵称和头像），走缓存批量查询
+     * 无论多少个id，都只需要一次MGET，缓存没命中的再用一次in查询查数据库
+     * @param ids
+     * @return 和ids顺序一致，不存在的用户不会出现在结果中
+     */
+    @Override
+    public List<UserDTO> queryUserDTOsByIds(List<Long> ids) {
+        List<UserDTO> users = cacheClient.queryBatch(CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> listByIds(missIds).stream()
+                        .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                        .collect(Collectors.toMap(UserDTO::getId, Function.identity())),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+        return users.stream()
+                .filter(user -> user != null)
+                .collect(Collectors.toList());
+    }
 }
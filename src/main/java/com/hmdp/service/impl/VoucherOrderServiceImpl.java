@@ -1,12 +1,19 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.DeadLetterOrder;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.*;
 import lombok.extern.slf4j.Slf4j;
@@ -14,6 +21,13 @@ import org.redisson.Redisson;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -22,14 +36,22 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -51,6 +73,31 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private RedissonClient redissonClient;
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private SoldOutGate soldOutGate;
+
+    // 每次从消息队列中读取的订单数，同一批订单在一个事务中批量扣减库存、批量插入；为1时逐条处理
+    @Value("${hmdp.seckill.order.batch-size:1}")
+    private int batchSize;
+
+    // 订单消息队列的分区数，按用户id的哈希分到不同的stream中；只能调大，调小后多出来的分区不再有人消费
+    @Value("${hmdp.seckill.order.streams:1}")
+    private int streams;
+
+    // 本节点每个分区的消费者线程数
+    @Value("${hmdp.seckill.order.consumers-per-stream:1}")
+    private int consumersPerStream;
+
+    // 本节点的标识，作为消费者名称的前缀，重启后保持不变才能接着处理自己pending-list中的消息；默认为主机名:端口
+    @Value("${hmdp.node-id:}")
+    private String nodeId;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
 
     // 秒杀业务lua脚本
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
@@ -64,97 +111,395 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     // 阻塞队列，当一个线程尝试从阻塞队列中获取元素时，如果队列中没有元素，则该线程就会阻塞，直到队列中有元素才会将该线程唤醒
     private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
-    // 线程池，将秒杀订单写入数据库，不用太快，异步写着就行，所以只给了一个线程
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    // 线程池，将秒杀订单写入数据库，每个分区consumersPerStream个线程，每个线程是消费组中一个独立的消费者
+    private ExecutorService seckillOrderExecutor;
+    // 定时回收长时间没有ACK的消息，单独一个线程，不占用消费者线程和Spring的定时任务线程
+    private ScheduledExecutorService reclaimExecutor;
+    // 每个分区上一次回收检查到的pending消息id，下一次从这里往后翻页，检查到末尾后从头开始，只在回收线程中读写
+    private final Map<String, String> reclaimCursors = new HashMap<>();
+    // 应用关闭时通知消费者线程退出循环
+    private volatile boolean running = true;
 
 
     @PostConstruct  // 在当前类初始化完毕后就会执行这个方法
     private void init() {
-        // 这个任务应该在项目一启动就开始，因为随时有可能有用户秒杀然后需要从阻塞队列中取订单
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        if (StrUtil.isBlank(nodeId)) {
+            nodeId = NetUtil.getLocalHostName() + ":" + serverPort;
+        }
+        // 1. 创建每个分区的消费组，已经存在则跳过
+        for (int i = 0; i < streams; i++) {
+            createGroupIfAbsent(orderStreamKey(i));
+        }
+        // 2. 这个任务应该在项目一启动就开始，因为随时有可能有用户秒杀然后需要从消息队列中取订单
+        AtomicInteger threadIndex = new AtomicInteger();
+        seckillOrderExecutor = Executors.newFixedThreadPool(streams * consumersPerStream, r -> {
+            Thread t = new Thread(r, "seckill-order-" + threadIndex.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < streams; i++) {
+            for (int j = 0; j < consumersPerStream; j++) {
+                // 消费者名称在所有节点、所有线程之间唯一，各自有自己的pending-list
+                seckillOrderExecutor.submit(new VoucherOrderHandler(orderStreamKey(i), nodeId + "-" + i + "-" + j));
+            }
+        }
+        log.info("订单消费者已启动，分区数 = {}，每个分区的消费者数 = {}，节点 = {}", streams, consumersPerStream, nodeId);
+        // 3. 启动回收任务
+        reclaimExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "seckill-order-reclaimer");
+            t.setDaemon(true);
+            return t;
+        });
+        reclaimExecutor.scheduleWithFixedDelay(this::reclaimPendingOrders, SystemConstants.ORDER_RECLAIM_INTERVAL,
+                SystemConstants.ORDER_RECLAIM_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        reclaimExecutor.shutdown();
+        seckillOrderExecutor.shutdown();
+    }
+
+    /**
+     * 分区对应的stream，第0个分区沿用原来的stream.orders，分区数从1调大时原来的消息仍会被消费
+     */
+    private static String orderStreamKey(int partition) {
+        return partition == 0 ? RedisConstants.SECKILL_ORDER_STREAM_KEY : RedisConstants.SECKILL_ORDER_STREAM_KEY + ":" + partition;
+    }
+
+    /**
+     * 用户所在的分区，同一个用户的订单总在同一个分区，批量下单时的一人一单判断不会和其它分区的消费者冲突
+     */
+    private String orderStreamKeyOf(Long userId) {
+        return orderStreamKey(Math.floorMod(userId.hashCode(), streams));
+    }
+
+    /**
+     * XGROUP CREATE key g1 0 MKSTREAM，stream不存在时一起创建，消费组已经存在时redis返回BUSYGROUP错误
+     */
+    private void createGroupIfAbsent(String streamKey) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    streamKey.getBytes(StandardCharsets.UTF_8), RedisConstants.SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+            log.info("已创建消费组，stream = {}", streamKey);
+        } catch (RedisSystemException e) {
+            if (e.getMessage() == null || !e.getMessage().contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
     }
 
     // 线程任务
     private class VoucherOrderHandler implements Runnable {
-        String queueName = "stream.orders";
+        private final String queueName;
+        private final String consumerName;
+
+        VoucherOrderHandler(String queueName, String consumerName) {
+            this.queueName = queueName;
+            this.consumerName = consumerName;
+        }
+
         @Override
         public void run() {
-            // TODO 这个线程一直尝试从消息队列中获取，导致结束项目运行后会发生线程池仍有线程未释放的异常
-            // 不断从消息队列中获取订单信息
-            while (true) {
+            // 先把重启前已经读取但还没有ACK的消息处理掉
+            handlePendingList();
+            // 不断从消息队列中获取订单信息，应用关闭时退出
+            while (running) {
+                List<MapRecord<String, Object, Object>> list;
                 try {
-                    // 1. 获取Stream消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),  // 指定消费组和消费者
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),    // 读取的选项，每次读多少个，是否阻塞...
+                    // 1. 获取Stream消息队列中的订单信息 XREADGROUP GROUP g1 consumerName COUNT batchSize BLOCK 2000 STREAMS queueName >
+                    list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumerName),  // 指定消费组和消费者
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),    // 读取的选项，每次读多少个，是否阻塞...
                             StreamOffset.create(queueName, ReadOffset.lastConsumed())   // 读取的队列名，以及从哪里开始读
                     );
-
-                    // 2. 判断是否获取到了消息
-                    if (list == null || list.isEmpty()) {
-                        // 2.1 如果没获取到消息，则继续下一次循环尝试获取
-                        continue;
+                } catch (Exception e) {
+                    if (!running) {
+                        break;
                     }
+                    // redis不可用，等一会再读，不要空转
+                    log.error("读取订单消息异常", e);
+                    sleep(SystemConstants.ORDER_READ_ERROR_BACKOFF);
+                    continue;
+                }
 
-                    // 2.2 如果获取到了消息，可以下单（具体业务逻辑）
-                    // 解析取出的消息中的订单信息，在这里知道每次只取一个，因此list里实际只有一个元素
-                    MapRecord<String, Object, Object> record = list.get(0); // String是消息的id
-                    Map<Object, Object> values = record.getValue();  // 获取该消息中的键值对
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true); // 将map中的键值对封装到对象中
-
-                    // 可以下单
-                    handleVoucherOrder(voucherOrder);
-
-                    // 3. ACK确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-
-                } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    // 如果有异常则从 pending-list 中取消息再次处理，保证每个消息都至少执行一次
-                    handlePendingList();
+                // 2. 判断是否获取到了消息
+                if (list == null || list.isEmpty()) {
+                    // 2.1 如果没获取到消息，则继续下一次循环尝试获取
+                    continue;
                 }
+
+                // 2.2 如果获取到了消息，可以下单（具体业务逻辑），成功的ACK确认
+                // 处理失败的消息留在pending-list中，由回收任务按退避时间重试，不在这里反复重试，后面的订单不受影响
+                processRecords(queueName, list);
             }
         }
 
+        /**
+         * 把自己pending-list中的消息从头到尾处理一遍，每次从上一批的最后一个id之后读，失败的消息不会挡住后面的消息
+         */
         private void handlePendingList() {
-            while (true) {
+            String cursor = "0";
+            while (running) {
+                List<MapRecord<String, Object, Object>> list;
                 try {
-                    // 1. 获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 STREAMS stream.orders 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),  // 指定消费组和消费者
-                            StreamReadOptions.empty().count(1),    // 从pending-list中读不需要阻塞
-                            StreamOffset.create(queueName, ReadOffset.from("0"))   // 每次都读pending-list的第一个消息（当处理完收到回复后则下一个已消费但未回复的消息就变成第一个了）
+                    // 1. 获取pending-list中的订单信息 XREADGROUP GROUP g1 consumerName COUNT batchSize STREAMS queueName cursor
+                    list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumerName),  // 指定消费组和消费者
+                            StreamReadOptions.empty().count(batchSize),    // 从pending-list中读不需要阻塞
+                            StreamOffset.create(queueName, ReadOffset.from(cursor))   // 读pending-list中id大于cursor的消息
                     );
+                } catch (Exception e) {
+                    // 剩下的消息闲置一段时间后由回收任务处理
+                    log.error("读取pending-list异常", e);
+                    return;
+                }
 
-                    // 2. 判断是否获取到了消息
-                    if (list == null || list.isEmpty()) {
-                        // 2.1 如果没获取到消息，说明pending-list没有异常消息了，则结束循环
-                        break;
-                    }
+                // 2. 判断是否获取到了消息
+                if (list == null || list.isEmpty()) {
+                    // 2.1 如果没获取到消息，说明pending-list已经处理完了，则结束循环
+                    break;
+                }
 
-                    // 2.2 如果获取到了消息，可以下单（具体业务逻辑）
-                    // 解析取出的消息中的订单信息，在这里知道每次只取一个，因此list里实际只有一个元素
-                    MapRecord<String, Object, Object> record = list.get(0); // String是消息的id
-                    Map<Object, Object> values = record.getValue();  // 获取该消息中的键值对
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true); // 将map中的键值对封装到对象中
+                // 2.2 如果获取到了消息，可以下单（具体业务逻辑）
+                cursor = list.get(list.size() - 1).getId().getValue();
+                processRecords(queueName, list);
+            }
+        }
+    }
 
-                    // 可以下单
-                    handleVoucherOrder(voucherOrder);
+    /**
+     * 处理一批消息并ACK确认：整批失败时逐条处理，把出问题的那一条隔离出来
+     * 逐条处理仍然失败的消息不ACK，留在pending-list中
+     * @param streamKey
+     * @param list
+     * @return 处理失败的消息id -> 异常
+     */
+    private Map<RecordId, Exception> processRecords(String streamKey, List<MapRecord<String, Object, Object>> list) {
+        // 1. 整批处理
+        try {
+            handleRecords(list);
+            acknowledge(streamKey, list);
+            return Collections.emptyMap();
+        } catch (Exception e) {
+            if (list.size() == 1) {
+                log.error("处理订单消息失败，留在pending-list中等待重试，stream = {}，id = {}", streamKey, list.get(0).getId(), e);
+                return Collections.singletonMap(list.get(0).getId(), e);
+            }
+            log.error("处理订单异常，逐条重试，消息数 = {}", list.size(), e);
+        }
+        // 2. 逐条处理，已经创建的订单会被一人一单的判断跳过
+        Map<RecordId, Exception> failed = new HashMap<>();
+        for (MapRecord<String, Object, Object> record : list) {
+            List<MapRecord<String, Object, Object>> one = Collections.singletonList(record);
+            try {
+                handleRecords(one);
+                acknowledge(streamKey, one);
+            } catch (Exception e) {
+                log.error("处理订单消息失败，留在pending-list中等待重试，stream = {}，id = {}", streamKey, record.getId(), e);
+                failed.put(record.getId(), e);
+            }
+        }
+        return failed;
+    }
 
-                    // 3. ACK确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+    /**
+     * 处理一批消息：只有一条时按原来的方式加锁逐条下单，多条时在一个事务中批量下单
+     */
+    private void handleRecords(List<MapRecord<String, Object, Object>> list) {
+        List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+        for (MapRecord<String, Object, Object> record : list) {
+            Map<Object, Object> values = record.getValue();  // 获取该消息中的键值对
+            voucherOrders.add(BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true)); // 将map中的键值对封装到对象中
+        }
+        if (voucherOrders.size() == 1) {
+            handleVoucherOrder(voucherOrders.get(0));
+            return;
+        }
+        int created = proxy.createVoucherOrders(voucherOrders);
+        log.debug("批量下单完成，消息数 = {}，创建订单数 = {}", voucherOrders.size(), created);
+    }
 
-                } catch (Exception e) {
-                    log.error("处理pending-list订单异常", e);
-                    // 如果处理pending-list又出现了异常，这里不需要递归，而是等到下一次循环再从pending-list中取即可
-                    // 确保每一个订单都会得到处理
-                    try {
-                        Thread.sleep(20);   // 为了防止过于频繁的尝试，可以加一点休眠
-                    } catch (InterruptedException ex) {
-                        ex.printStackTrace();
-                    }
+    /**
+     * 整批一次ACK确认 XACK queueName g1 id1 id2 ...
+     */
+    private void acknowledge(String streamKey, List<MapRecord<String, Object, Object>> list) {
+        RecordId[] ids = list.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, RedisConstants.SECKILL_ORDER_GROUP, ids);
+    }
+
+    /**
+     * 回收长时间没有ACK的消息，包括宕机节点的消费者读取后没来得及处理的、处理失败留在pending-list中的
+     * 1. XPENDING按id从上一次检查到的位置往后翻页，每次最多ORDER_RECLAIM_MAX_PAGES页，到末尾后下一次从头开始，
+     *    这样排在前面、还在退避中的消息不会挡住后面的消息；闲置时间超过退避时间才回收：
+     *    ORDER_RETRY_MIN_IDLE * 2^(投递次数-1)，最多ORDER_RETRY_MAX_BACKOFF
+     *    最小闲置时间要远大于一批订单的处理耗时，否则会把其它消费者正在处理的消息抢过来重复处理
+     * 2. XCLAIM转给本节点的回收消费者，投递次数+1；多个节点同时回收同一个消息时只有一个能转过来
+     * 3. 逐条处理，成功则ACK；失败且投递次数达到ORDER_MAX_DELIVERIES的移到死信队列，不再重试
+     */
+    private void reclaimPendingOrders() {
+        for (int i = 0; i < streams && running; i++) {
+            String streamKey = orderStreamKey(i);
+            try {
+                reclaim(streamKey);
+            } catch (Exception e) {
+                log.error("回收待确认的订单消息异常，stream = {}", streamKey, e);
+            }
+        }
+    }
+
+    private void reclaim(String streamKey) {
+        for (int page = 0; page < SystemConstants.ORDER_RECLAIM_MAX_PAGES && running; page++) {
+            // 从上一次检查到的id开始（包含该id，兼容不支持开区间的redis版本），跳过已经检查过的那一条
+            String cursor = reclaimCursors.get(streamKey);
+            Range<String> range = cursor == null ? Range.unbounded() : Range.rightUnbounded(Range.Bound.inclusive(cursor));
+            PendingMessages pendingMessages = stringRedisTemplate.opsForStream().pending(streamKey,
+                    RedisConstants.SECKILL_ORDER_GROUP, range, SystemConstants.ORDER_RECLAIM_BATCH);
+            List<PendingMessage> unchecked = new ArrayList<>(pendingMessages.size());
+            for (PendingMessage pendingMessage : pendingMessages) {
+                if (cursor == null || !cursor.equals(pendingMessage.getIdAsString())) {
+                    unchecked.add(pendingMessage);
                 }
             }
+            if (unchecked.isEmpty()) {
+                // 已经检查到末尾，下一次从头开始
+                reclaimCursors.remove(streamKey);
+                return;
+            }
+            reclaimCursors.put(streamKey, unchecked.get(unchecked.size() - 1).getIdAsString());
+            reclaimPage(streamKey, unchecked);
+            if (pendingMessages.size() < SystemConstants.ORDER_RECLAIM_BATCH) {
+                reclaimCursors.remove(streamKey);
+                return;
+            }
+        }
+    }
+
+    private void reclaimPage(String streamKey, List<PendingMessage> pendingMessages) {
+        String reclaimer = nodeId + "-reclaimer";
+        for (PendingMessage pendingMessage : pendingMessages) {
+            if (!running) {
+                return;
+            }
+            // 1. 还没到重试时间
+            Duration backoff = retryBackoff(pendingMessage.getTotalDeliveryCount());
+            if (pendingMessage.getElapsedTimeSinceLastDelivery().compareTo(backoff) < 0) {
+                continue;
+            }
+            // 2. 转给回收消费者，闲置时间在XCLAIM时再判断一次，其它节点刚转走的不会再转过来
+            List<MapRecord<String, Object, Object>> claimed = claim(streamKey, reclaimer, backoff, pendingMessage.getId());
+            if (claimed.isEmpty()) {
+                continue;
+            }
+            // 3. 处理，超过重试次数的移到死信队列
+            Exception error = processRecords(streamKey, claimed).get(pendingMessage.getId());
+            long deliveries = pendingMessage.getTotalDeliveryCount() + 1;
+            if (error != null && deliveries >= SystemConstants.ORDER_MAX_DELIVERIES) {
+                deadLetter(streamKey, claimed.get(0), deliveries, error);
+            }
+        }
+    }
+
+    /**
+     * XCLAIM queueName g1 reclaimer minIdle id
+     * @return 转过来的消息，闲置时间不够（已被其它节点转走）或者消息已被删除时为空
+     */
+    private List<MapRecord<String, Object, Object>> claim(String streamKey, String newOwner, Duration minIdle, RecordId id) {
+        List<ByteRecord> records = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(streamKey.getBytes(StandardCharsets.UTF_8),
+                        RedisConstants.SECKILL_ORDER_GROUP, newOwner, minIdle, id));
+        if (records == null) {
+            return Collections.emptyList();
+        }
+        return records.stream()
+                .map(record -> record.<String, Object, Object>deserialize(
+                        RedisSerializer.string(), RedisSerializer.string(), RedisSerializer.string()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 第n次投递之后要闲置多久才重试
+     */
+    private static Duration retryBackoff(long deliveries) {
+        int shift = (int) Math.min(Math.max(deliveries - 1, 0), 20);
+        return Duration.ofMillis(Math.min(SystemConstants.ORDER_RETRY_MIN_IDLE << shift, SystemConstants.ORDER_RETRY_MAX_BACKOFF));
+    }
+
+    /**
+     * 移到死信队列：原消息的字段加上来源、投递次数和最后一次的异常，写入死信队列后再ACK
+     * 写入后ACK失败时，这条消息会在下一次回收时再次写入死信队列，重放时按一人一单去重
+     */
+    private void deadLetter(String streamKey, MapRecord<String, Object, Object> record, long deliveries, Exception error) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        record.getValue().forEach((field, value) -> fields.put(field.toString(), String.valueOf(value)));
+        fields.put("sourceStream", streamKey);
+        fields.put("sourceId", record.getId().getValue());
+        fields.put("deliveries", String.valueOf(deliveries));
+        fields.put("error", StrUtil.maxLength(error.toString(), SystemConstants.ORDER_DEAD_LETTER_ERROR_LENGTH));
+        stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(RedisConstants.SECKILL_ORDER_DEAD_LETTER_KEY).ofMap(fields));
+        acknowledge(streamKey, Collections.singletonList(record));
+        log.error("订单消息超过重试次数，移到死信队列，stream = {}，id = {}", streamKey, record.getId());
+    }
+
+    /**
+     * 查询死信队列中最早的消息
+     * @param count 最多返回的个数
+     * @return
+     */
+    @Override
+    public List<DeadLetterOrder> queryDeadLetters(Integer count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(RedisConstants.SECKILL_ORDER_DEAD_LETTER_KEY, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        if (records == null) {
+            return Collections.emptyList();
+        }
+        return records.stream().map(record -> {
+            Map<Object, Object> values = record.getValue();
+            return DeadLetterOrder.builder()
+                    .id(record.getId().getValue())
+                    .orderId(Convert.toLong(values.get("id")))
+                    .userId(Convert.toLong(values.get("userId")))
+                    .voucherId(Convert.toLong(values.get("voucherId")))
+                    .sourceStream(Convert.toStr(values.get("sourceStream")))
+                    .sourceId(Convert.toStr(values.get("sourceId")))
+                    .deliveries(Convert.toLong(values.get("deliveries")))
+                    .error(Convert.toStr(values.get("error")))
+                    .build();
+        }).collect(Collectors.toList());
+    }
+
+    /**
+     * 重放死信：作为新消息发送到用户所在的分区（投递次数从0开始），然后从死信队列中删除
+     * 修复了导致失败的问题（比如数据库数据、代码缺陷）之后调用
+     * @param id 死信队列中的消息id
+     * @return 消息是否存在
+     */
+    @Override
+    public boolean replayDeadLetter(String id) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(RedisConstants.SECKILL_ORDER_DEAD_LETTER_KEY, Range.closed(id, id));
+        if (records == null || records.isEmpty()) {
+            return false;
+        }
+        Map<Object, Object> values = records.get(0).getValue();
+        Long userId = Convert.toLong(values.get("userId"));
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("userId", String.valueOf(userId));
+        fields.put("voucherId", String.valueOf(values.get("voucherId")));
+        fields.put("id", String.valueOf(values.get("id")));
+        // 先发送再删除，删除失败时再次重放也只会创建一个订单
+        stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(orderStreamKeyOf(userId)).ofMap(fields));
+        stringRedisTemplate.opsForStream().delete(RedisConstants.SECKILL_ORDER_DEAD_LETTER_KEY, id);
+        log.info("重放死信，id = {}，userId = {}", id, userId);
+        return true;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -167,15 +512,16 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         Long userId = voucherOrder.getUserId();
 
         // 利用redisson中的分布式锁实现
-        // 2. 创建锁对象
-        RLock lock = redissonClient.getLock(RedisConstants.LOCK_KEY_PREFIX + RedisConstants.ORDER_PREFIX + userId);
+        // 2. 创建锁对象，一人一单是针对同一张券的，按用户+券加锁，同一用户抢不同的券不会互相挤掉
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_KEY_PREFIX + RedisConstants.ORDER_PREFIX
+                + userId + ":" + voucherOrder.getVoucherId());
         // 3. 尝试获取锁
         boolean isLock = lock.tryLock();    // 无参默认失败不等待不重试
         // 4. 判断是否获取成功
         if (!isLock) {
-            // 获取锁失败，这里因为是异步处理，也不用返回给前端，记录下错误即可
-            log.error("不允许重复下单");
-            return;
+            // 获取锁失败说明另一个消费者正在处理同一用户同一张券的消息，Lua脚本已经扣过库存，不能直接丢弃
+            // 抛出异常让这条消息不被ACK，留在pending-list中，重试时由createVoucherOrder()的一人一单判断决定是否下单
+            throw new IllegalStateException("订单正在被其它消费者处理，userId = " + userId + "，voucherId = " + voucherOrder.getVoucherId());
         }
 
         try {
@@ -189,7 +535,10 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
     }
 
-    // 记录主线程的代理对象，以便处理订单的子线程能够调用带有事务管理的createVoucherOrder()方法
+    // 代理对象，以便处理订单的子线程能够调用带有事务管理的createVoucherOrder()方法
+    // 消费者线程启动后马上就会处理pending-list，这时可能还没有任何抢购请求，所以直接注入而不是在抢购时从AopContext中取
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
 
@@ -201,25 +550,39 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 0. 本节点已经知道售罄，直接返回，不再生成订单id、执行lua脚本
+        if (soldOutGate.isSoldOut(voucherId)) {
+            return Result.fail(MessageConstants.SECKILL_VOUCHER_STOCK_NOT_ENOUGH);
+        }
+
         // 获取当前用户id
         Long userId = UserHolder.getUser().getId();
         // 生成订单id（是否真正生成订单由lua脚本判断）
         long orderId = redisIdWorker.nextId(RedisConstants.ORDER_PREFIX);    // 生成全局唯一且递增的订单id
 
-        // 获取代理对象并保存到成员变量，以便处理订单的子线程能够调用带有事务管理的createVoucherOrder()方法
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-
-        // 1. 执行lua脚本（判断购买资格，发送订单信息到消息队列）
+        // 1. 执行lua脚本（判断购买资格，发送订单信息到用户所在分区的消息队列）
         Long result = stringRedisTemplate.execute(
                 SECKILL_SCRIPT, // 脚本
-                Collections.emptyList(),    // key类型的参数，没有就传空集合
+                Collections.singletonList(orderStreamKeyOf(userId)),    // key类型的参数，订单消息发送到的stream
                 voucherId.toString(), userId.toString(), String.valueOf(orderId));// 其他类型的参数
 
         // 2. 根据lua脚本的执行结果判断是否秒杀成功（返回值是否是0）
         int r = result.intValue();
         if (r != 0) {
-            // 2.1 不为0，代表没有购买资格，秒杀失败
-            return Result.fail(r == 1 ? MessageConstants.SECKILL_VOUCHER_STOCK_NOT_ENOUGH : MessageConstants.DUPLICATE_ORDERS_NOT_ALLOWED);
+            // 2.1 不为0，代表没有购买资格，秒杀失败；库存不足时标记售罄并通知其它节点
+            switch (r) {
+                case 1:
+                    soldOutGate.markSoldOut(voucherId);
+                    return Result.fail(MessageConstants.SECKILL_VOUCHER_STOCK_NOT_ENOUGH);
+                case 3:
+                    return Result.fail(MessageConstants.SECKILL_NOT_BEGIN);
+                case 4:
+                    return Result.fail(MessageConstants.SECKILL_HAVE_END);
+                case 5:
+                    return Result.fail(MessageConstants.SECKILL_VOUCHER_NOT_AVAILABLE);
+                default:
+                    return Result.fail(MessageConstants.DUPLICATE_ORDERS_NOT_ALLOWED);
+            }
         }
 
         // 3，返回订单id
@@ -314,6 +677,101 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
         // 将传入的订单写入数据库
         save(voucherOrder);
+
+        // 店铺销量+1，缓存中只改销量这一个字段
+        Voucher voucher = voucherService.getById(voucherId);
+        if (voucher != null) {
+            shopService.incrementSold(voucher.getShopId(), 1);
+        }
+    }
+
+
+
+    /**
+     * 批量下单，一批订单在一个事务中完成，取代逐条的加锁、查询、扣减、插入
+     * 1. 内存中去重：同一个用户对同一张券只保留一个订单（消息重复投递时订单id也相同）
+     * 2. 一次查询过滤掉数据库中已经存在的订单（pending-list中重新处理的消息）
+     * 3. 按优惠券分组，每张券一条update扣减整组的库存
+     * 4. 批量插入订单，店铺销量按店铺分组累加
+     * redis中的lua脚本已经保证了库存和一人一单，这里的判断只是兜底，所以不再逐个用户加锁
+     * @param voucherOrders
+     * @return 实际创建的订单数
+     */
+    @Override
+    @Transactional
+    public int createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 1. 内存中去重
+        Map<String, VoucherOrder> unique = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            unique.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+        }
+
+        // 2. 过滤掉数据库中已经存在的订单
+        Set<Long> userIds = unique.values().stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Set<Long> voucherIds = unique.values().stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        query().select("user_id", "voucher_id")
+                .in("user_id", userIds)
+                .in("voucher_id", voucherIds)
+                .list()
+                .forEach(existing -> {
+                    if (unique.remove(existing.getUserId() + ":" + existing.getVoucherId()) != null) {
+                        log.error("不允许重复下单，userId = {}，voucherId = {}", existing.getUserId(), existing.getVoucherId());
+                    }
+                });
+        if (unique.isEmpty()) {
+            return 0;
+        }
+
+        // 3. 按优惠券分组扣减库存
+        Map<Long, List<VoucherOrder>> byVoucher = unique.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        List<VoucherOrder> toSave = new ArrayList<>(unique.size());
+        byVoucher.forEach((voucherId, orders) -> toSave.addAll(deductStock(voucherId, orders)));
+        if (toSave.isEmpty()) {
+            return 0;
+        }
+
+        // 4. 批量插入订单
+        saveBatch(toSave);
+
+        // 5. 店铺销量按店铺分组累加，缓存中只改销量这一个字段
+        Map<Long, Long> soldByVoucher = toSave.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        Map<Long, Integer> soldByShop = new HashMap<>();
+        for (Voucher voucher : voucherService.listByIds(soldByVoucher.keySet())) {
+            soldByShop.merge(voucher.getShopId(), soldByVoucher.get(voucher.getId()).intValue(), Integer::sum);
+        }
+        soldByShop.forEach(shopService::incrementSold);
+        return toSave.size();
+    }
+
+    /**
+     * 一条update扣减一组订单的库存；库存不够整组扣减时（正常情况下lua脚本已经保证了不会发生）退回逐个扣减，扣不到的订单丢弃
+     * @return 扣减成功的订单
+     */
+    private List<VoucherOrder> deductStock(Long voucherId, List<VoucherOrder> orders) {
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - " + orders.size())
+                .eq("voucher_id", voucherId)
+                .ge("stock", orders.size())
+                .update();
+        if (success) {
+            return orders;
+        }
+        List<VoucherOrder> deducted = new ArrayList<>(orders.size());
+        for (VoucherOrder order : orders) {
+            boolean one = seckillVoucherService.update()
+                    .setSql("stock = stock - 1")
+                    .eq("voucher_id", voucherId)
+                    .gt("stock", 0)
+                    .update();
+            if (!one) {
+                log.error("秒杀券库存不足，voucherId = {}，丢弃订单数 = {}", voucherId, orders.size() - deducted.size());
+                break;
+            }
+            deducted.add(order);
+        }
+        return deducted;
     }
 
 
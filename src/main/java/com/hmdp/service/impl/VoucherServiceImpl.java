@@ -7,8 +7,9 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheInvalidator;
 import com.hmdp.utils.RedisConstants;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.SoldOutGate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -29,7 +30,9 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private CacheInvalidator cacheInvalidator;
+    @Resource
+    private SoldOutGate soldOutGate;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -39,6 +42,17 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         return Result.ok(vouchers);
     }
 
+    /**
+     * 新增普通券，删除该店铺优惠券列表的响应缓存
+     * @param voucher
+     */
+    @Override
+    @Transactional
+    public void addVoucher(Voucher voucher) {
+        save(voucher);
+        cacheInvalidator.delete(RedisConstants.CACHE_VOUCHER_LIST_KEY + voucher.getShopId());
+    }
+
     /**
      * 新增秒杀券，同时将优惠券信息添加到redis中
      * @param voucher
@@ -56,7 +70,34 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
-        // 保存秒杀券库存到redis中
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 保存秒杀券的库存和时间窗口到redis中，秒杀脚本据此判断库存和是否在秒杀时间内
+        seckillVoucherService.preheat(seckillVoucher);
+
+        // 删除该店铺优惠券列表的响应缓存，事务提交后执行
+        cacheInvalidator.delete(RedisConstants.CACHE_VOUCHER_LIST_KEY + voucher.getShopId());
+    }
+
+    /**
+     * 补充秒杀券库存，事务提交后同步增加redis中的库存，并删除所有节点的售罄标记
+     * @param voucherId
+     * @param amount 增加的库存
+     * @return 秒杀券是否存在
+     */
+    @Override
+    @Transactional
+    public boolean addSeckillStock(Long voucherId, Integer amount) {
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + amount)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return false;
+        }
+        // 先加库存再删标记，标记删除后的请求一定能看到新的库存
+        cacheInvalidator.runAfterCommit(() -> {
+            seckillVoucherService.incrementStock(voucherId, amount);
+            soldOutGate.reset(voucherId);
+        });
+        return true;
     }
 }
@@ -0,0 +1,35 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * 运维接口（/admin/**）的拦截器，请求头中的口令和配置的hmdp.admin.token一致才放行
+ * 这些接口和用户无关，普通用户登录后也不能访问；没有配置口令时全部拒绝
+ */
+
+@Component
+public class AdminInterceptor implements HandlerInterceptor {
+
+    @Value("${hmdp.admin.token:}")
+    private String adminToken;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        String token = request.getHeader("x-admin-token");
+        // 按字节逐个比较，耗时和口令内容无关
+        if (StrUtil.isBlank(adminToken) || token == null || !MessageDigest.isEqual(
+                adminToken.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,101 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileParser;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * 紧凑的二进制编码器
+ * 格式：魔数(1字节) + 版本(1字节) + 逻辑过期时间戳(8字节，毫秒，0表示没有逻辑过期) + 重建耗时(4字节，毫秒) + 数据(smile二进制json)
+ * 版本1没有重建耗时字段，读取时兼容
+ * 逻辑过期时间和重建耗时放在定长的头部，判断是否过期/是否提前刷新只需要读头部，不用反序列化数据
+ * 数据只序列化一次，不像json格式那样要先解析RedisData再解析一次data
+ */
+
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class BinaryCacheCodec implements CacheCodec {
+
+    public static final String NAME = "binary";
+
+    // 魔数，json一定以ASCII字符开头，而0xFE在UTF-8中不会出现，因此不会和json混淆
+    private static final byte MAGIC = (byte) 0xFE;
+    private static final byte VERSION = 2;
+    private static final int V1_HEADER_LENGTH = 10;
+    private static final int HEADER_LENGTH = 14;
+
+    private final ObjectMapper mapper;
+
+    public BinaryCacheCodec() {
+        // 不写smile自己的头部，由上面的定长头部区分格式
+        SmileFactory factory = SmileFactory.builder()
+                .disable(SmileGenerator.Feature.WRITE_HEADER)
+                .disable(SmileParser.Feature.REQUIRE_HEADER)
+                .build();
+        this.mapper = new ObjectMapper(factory)
+                .registerModule(new JavaTimeModule())
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public boolean canDecode(byte[] bytes) {
+        return bytes.length >= V1_HEADER_LENGTH && bytes[0] == MAGIC;
+    }
+
+    @Override
+    public byte[] encode(Object value, LocalDateTime expireTime, long rebuildCost) {
+        try {
+            byte[] payload = mapper.writeValueAsBytes(value);
+            long expireAt = expireTime == null ? 0 : expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            return ByteBuffer.allocate(HEADER_LENGTH + payload.length)
+                    .put(MAGIC)
+                    .put(VERSION)
+                    .putLong(expireAt)
+                    .putInt((int) Math.min(rebuildCost, Integer.MAX_VALUE))
+                    .put(payload)
+                    .array();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public LocalDateTime readExpireTime(byte[] bytes) {
+        long expireAt = ByteBuffer.wrap(bytes, 2, 8).getLong();
+        return expireAt == 0 ? null : LocalDateTime.ofInstant(Instant.ofEpochMilli(expireAt), ZoneId.systemDefault());
+    }
+
+    @Override
+    public long readRebuildCost(byte[] bytes) {
+        return bytes[1] == 1 ? 0 : ByteBuffer.wrap(bytes, 10, 4).getInt();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type, boolean logicalExpire) {
+        int headerLength = bytes[1] == 1 ? V1_HEADER_LENGTH : HEADER_LENGTH;
+        try {
+            return mapper.readValue(bytes, headerLength, bytes.length - headerLength, type);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
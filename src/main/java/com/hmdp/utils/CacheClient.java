@@ -1,21 +1,50 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.OffHeapStats;
 import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  * 缓存工具封装类
@@ -25,104 +54,1004 @@ import java.util.function.Function;
 @Component
 public class CacheClient {
 
+    // 带版本号写入缓存的lua脚本
+    private static final DefaultRedisScript<Long> SET_IF_NEWER_SCRIPT;
+
+    static {
+        SET_IF_NEWER_SCRIPT = new DefaultRedisScript<>();
+        SET_IF_NEWER_SCRIPT.setLocation(new ClassPathResource("cache_set_if_newer.lua"));
+        SET_IF_NEWER_SCRIPT.setResultType(Long.class);
+    }
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    // 所有的编解码器，二进制的排在前面，json兜底
+    @Resource
+    private List<CacheCodec> codecs;
+
+    // 写入时使用的编码器名称，读取时不受影响，新旧格式都能读
+    @Value("${hmdp.cache.codec:json}")
+    private String codecName;
+
+    private CacheCodec writeCodec;
+
+    // 堆外缓存的容量（字节），为0时不启用
+    @Value("${hmdp.cache.off-heap.size:0}")
+    private long offHeapSize;
+
+    // 编码后超过这个字节数的value压缩后再写入，为0时不压缩；读取时按头部判断，压缩和未压缩的数据都能读
+    @Value("${hmdp.cache.compression.threshold:0}")
+    private int compressThreshold;
+
+    /**
+     * 堆外缓存，位于本地缓存（L1）和redis（L2）之间，存放和redis中格式一致的字节，命中后再反序列化
+     * 本地缓存只放最常用的少量对象，大量的店铺、博客放在这里，不占用堆内存，不会拖慢GC
+     */
+    private OffHeapCache offHeapCache;
+
+    /**
+     * 本地一级缓存（L1），位于redis（L2）之前，容量有限，按LRU淘汰，每个条目有自己的TTL
+     * 值统一用RedisData包装：data为反序列化后的对象（空值缓存时为null），expireTime为逻辑过期时间（没有逻辑过期时为null）
+     * 注意：命中时返回的是同一个对象，调用者不要修改它
+     */
+    private final LRUCache<String, RedisData> localCache =
+            CacheUtil.newLRUCache(SystemConstants.LOCAL_CACHE_CAPACITY, SystemConstants.LOCAL_CACHE_TTL);
+
+    // 缓存未命中时合并同一个key的并发加载
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    // 按key前缀配置的过期时间策略，写入时打散过期时间
+    @Resource
+    private TtlPolicyRegistry ttlPolicyRegistry;
+
+    // 命中率、重建耗时、热点key等指标
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    // 热点key探测
+    private final HotKeyDetector hotKeyDetector = new HotKeyDetector(SystemConstants.HOT_KEY_WINDOW_SLOTS,
+            SystemConstants.HOT_KEY_SLOT_MILLIS, SystemConstants.HOT_KEY_SKETCH_WIDTH, SystemConstants.HOT_KEY_THRESHOLD);
+
+    /**
+     * 热点key的本地副本，不受LRU淘汰和本地缓存TTL的影响，由定时任务每隔HOT_KEY_REFRESH_INTERVAL从redis刷新一次
+     * 热点key的读请求全部落在本地，不会把redis中存这个key的那个分片打满
+     */
+    private final Map<String, PinnedEntry> pinned = new ConcurrentHashMap<>();
+
+    // 从快照加载、还没有和redis核对过的key -> 快照中的原始数据，第一次被读取时移到待核对队列
+    private final Map<String, byte[]> unverified = new ConcurrentHashMap<>();
+    // 已经被读取、等待和redis核对的快照条目
+    private final Queue<Map.Entry<String, byte[]>> toValidate = new ConcurrentLinkedQueue<>();
+
+    // key前缀 -> 布隆过滤器，查缓存之前先判断id是否可能存在
+    private final Map<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+    // redis熔断器，redis不可用时读取返回堆外缓存中的旧数据，重建只写本地，不再阻塞到命令超时
+    @Resource
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    // 本地缓存中某个key的值发生变化（写入新值或被删除）时的回调，用于清理依赖这个key的派生缓存
+    private final List<Consumer<String>> localChangeListeners = new CopyOnWriteArrayList<>();
+
+
+    @PostConstruct
+    private void init() {
+        writeCodec = codecs.stream()
+                .filter(codec -> codec.name().equals(codecName))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("未知的缓存编码器：" + codecName));
+        if (offHeapSize > 0) {
+            offHeapCache = new OffHeapCache(offHeapSize, SystemConstants.OFF_HEAP_SEGMENTS);
+        }
+    }
+
+
+    /**
+     * 为某一类key注册布隆过滤器，之后查询这类key时，布隆过滤器判断不存在的id直接返回null，不查redis也不查数据库
+     * @param keyPrefix key的前缀
+     * @param bloomFilter
+     */
+    public void registerBloomFilter(String keyPrefix, RedisBloomFilter bloomFilter) {
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+
+    /**
+     * 注册本地缓存变化的回调，参数为变化的key
+     * 只在本节点显式写入（set、setWithLogicalExpire、refreshLogicalExpire）、删除、收到其它节点的失效通知时回调，
+     * 查询时回填本地缓存不回调，热点读路径上不做多余的事，也不会把刚按同一份数据生成的派生缓存删掉
+     * @param listener
+     */
+    public void addLocalChangeListener(Consumer<String> listener) {
+        localChangeListeners.add(listener);
+    }
+
+
+    /**
+     * 将任意Java对象序列化并存储在string类型的key中，并且可以设置TTL过期时间
+     * 实际的TTL按该key前缀的过期时间策略打散
+     * @param key
+     * @param value 要存储的Java对象
+     * @param time
+     * @param unit
+     */
+    public void set(String key, Object value, Long time, TimeUnit unit) {
+        long ttlMillis = ttlPolicyRegistry.ttlMillis(key, time, unit);
+        setRaw(key, encode(key, value, null, 0), ttlMillis);
+        putLocal(key, value, null, ttlMillis);
+        fireLocalChange(key);
+    }
+
+
+    /**
+     * 将任意Java对象序列化并存储在string类型的key中，并且可以设置逻辑过期时间，用于处理缓存击穿问题
+     * 调用方不知道value是什么时候从数据库读出来的，按版本号0带版本号写入：
+     * 这个key在CACHE_VERSION_TTL内更新过就拒绝写入，不会用旧数据覆盖更新后刷新的值
+     * @param key
+     * @param value 要存储的Java对象
+     * @param time
+     * @param unit
+     * @return 是否写入成功
+     */
+    public boolean setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
+        if (setWithLogicalExpire(key, value, time, unit, 0)) {
+            fireLocalChange(key);
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * 批量设置逻辑过期，多个key用管道一次写入redis，用于缓存预热
+     * 预热的数据量远大于本地缓存的容量，因此只写redis，不写本地缓存
+     * 预热读数据库和写redis之间数据可能被更新过，所以只写不存在的key，并且和setWithLogicalExpire一样按版本号0写入
+     * 滚动发布时后启动的节点不会用更早读到的数据覆盖其它节点已经刷新过的值
+     * @param values key -> 要存储的Java对象
+     * @param time
+     * @param unit
+     * @return 实际写入的key个数，已经存在或被版本号拒绝的不算
+     * @throws org.springframework.data.redis.RedisConnectionFailureException redis不可用（熔断中或调用失败）时抛出，调用方要知道这一批没有写入
+     */
+    public int setWithLogicalExpireBatch(Map<String, ?> values, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return 0;
+        }
+        List<String> keys = new ArrayList<>(values.keySet());
+        // 同一批写入的key逻辑过期时间各不相同，预热后不会在同一时刻全部过期
+        List<byte[]> encoded = keys.stream()
+                .map(key -> encode(key, values.get(key), logicalExpireTime(key, time, unit), 0))
+                .collect(Collectors.toList());
+        List<Long> ttls = Collections.nCopies(keys.size(), -1L);
+        List<Long> versions = Collections.nCopies(keys.size(), 0L);
+        List<Boolean> written = redisCircuitBreaker.execute(() -> setRawIfNewerPipelined(keys, encoded, ttls, versions, true));
+        return (int) written.stream().filter(Boolean::booleanValue).count();
+    }
+
+
+    /**
+     * 删除缓存
+     * 先删redis，再删本地缓存，最后通过redis的发布订阅通知其它节点删除各自的本地缓存
+     * redis不可用时仍然抛出异常让调用方知道删除失败，但本节点的本地缓存一定会删除，不会继续返回已删除的数据
+     * @param key
+     */
+    public void delete(String key) {
+        try {
+            redisCircuitBreaker.run(() -> stringRedisTemplate.delete(key));
+        } finally {
+            evictLocal(key);
+        }
+        redisCircuitBreaker.run(() -> stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key));
+    }
+
+
+    /**
+     * 批量删除缓存，所有key用一次DEL删除，失效通知用管道一次发出去
+     * @param keys
+     */
+    public void delete(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        try {
+            redisCircuitBreaker.run(() -> stringRedisTemplate.delete(keys));
+        } finally {
+            keys.forEach(this::evictLocal);
+        }
+        broadcastEvict(keys);
+    }
+
+
+    /**
+     * 数据更新后把这些key的版本号加1，更新之前开始的重建都会被拒绝写入
+     * 必须在数据库事务提交之后调用，所有key用管道一次发出去
+     * @param keys
+     */
+    public void bumpVersion(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        long ttlMillis = TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_VERSION_TTL);
+        redisCircuitBreaker.run(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                byte[] versionKey = versionKey(key);
+                connection.incr(versionKey);
+                connection.pExpire(versionKey, ttlMillis);
+            }
+            return null;
+        }));
+    }
+
+
+    /**
+     * 重新查询数据库，按逻辑过期带版本号写入缓存；数据库中已不存在则删除缓存
+     * 用于数据更新后主动刷新逻辑过期的key，调用前应先调用bumpVersion
+     * @param key
+     * @param loader 查询数据库的逻辑
+     * @param time 逻辑过期时间
+     * @param unit
+     * @return 是否写入成功，刷新期间数据又被更新过时返回false
+     */
+    public boolean refreshLogicalExpire(String key, Supplier<?> loader, Long time, TimeUnit unit) {
+        // 先读版本号再查数据库
+        long version = readVersion(key);
+        Object value = loader.get();
+        if (value == null) {
+            delete(key);
+            return true;
+        }
+        if (setWithLogicalExpire(key, value, time, unit, version)) {
+            fireLocalChange(key);
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * 在逻辑过期之前主动刷新，多个节点之间用互斥锁保证只有一个去查数据库，刷新后通知所有节点删除本地缓存
+     * @param key
+     * @param lockKey
+     * @param loader 查询数据库的逻辑
+     * @param time 逻辑过期时间
+     * @param unit
+     * @param refreshBefore 拿到锁之后再读一次redis中的逻辑过期时间，晚于这个时间说明其它节点已经刷新过了
+     * @return 是否查询了数据库
+     */
+    public boolean refreshAhead(String key, String lockKey, Supplier<?> loader, Long time, TimeUnit unit,
+                                LocalDateTime refreshBefore) {
+        if (!redisCircuitBreaker.isClosed() || !tryLock(lockKey)) {
+            return false;
+        }
+        try {
+            LocalDateTime expireTime = readLogicalExpireTime(key);
+            if (expireTime == null || expireTime.isAfter(refreshBefore)) {
+                return false;
+            }
+            if (refreshLogicalExpire(key, loader, time, unit)) {
+                broadcastEvict(Collections.singletonList(key));
+            }
+            return true;
+        } finally {
+            unLock(lockKey);
+        }
+    }
+
+
+    /**
+     * 读取redis中的逻辑过期时间，二进制格式只读头部
+     * @return 不存在、空值、不是带逻辑过期时间写入的或者redis不可用时返回null
+     */
+    public LocalDateTime readLogicalExpireTime(String key) {
+        byte[] raw = decompress(key, redisCircuitBreaker.execute(() -> getRaw(key), () -> null));
+        if (raw == null || raw.length == 0) {
+            return null;
+        }
+        try {
+            return codecOf(raw).readExpireTime(raw);
+        } catch (Exception e) {
+            // 不是逻辑过期格式写入的数据（比如json数组）
+            return null;
+        }
+    }
+
+
+    /**
+     * 通知所有节点（包括本节点）删除这些key的本地缓存，redis中的数据不动
+     * 用于redis中的数据已经被覆盖为新值的场景，比如逻辑过期的key被主动刷新
+     * @param keys
+     */
+    public void broadcastEvict(Collection<String> keys) {
+        byte[] channel = RedisConstants.CACHE_INVALIDATE_CHANNEL.getBytes(StandardCharsets.UTF_8);
+        redisCircuitBreaker.run(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.publish(channel, key.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        }));
+    }
+
+
+    /**
+     * 只删除本节点的本地缓存，收到其它节点的失效通知时调用
+     * @param key
+     */
+    public void evictLocal(String key) {
+        localCache.remove(key);
+        unverified.remove(key);
+        if (offHeapCache != null) {
+            offHeapCache.remove(key);
+        }
+        // 热点key只清掉副本的值，仍然保持热点状态，下一次读取时重新加载
+        PinnedEntry entry = pinned.get(key);
+        if (entry != null) {
+            entry.value = null;
+        }
+        fireLocalChange(key);
+    }
+
+
+    /**
+     * 其它节点通知的热点key，本节点也提升为热点
+     * @param key
+     */
+    public void markHot(String key) {
+        hotKeyDetector.markHot(key);
+    }
+
+
+    /**
+     * 当前本节点的热点key
+     */
+    public Set<String> getPinnedKeys() {
+        return new TreeSet<>(pinned.keySet());
+    }
+
+
+    /**
+     * 堆外缓存的使用情况，未启用时返回null
+     */
+    public OffHeapStats getOffHeapStats() {
+        return offHeapCache == null ? null : offHeapCache.getStats();
+    }
+
+
+    /**
+     * 导出本地缓存中的条目，用于写快照，本地缓存中没有的key跳过
+     * @param keys
+     * @return key -> 条目
+     */
+    public Map<String, RedisData> exportLocal(Collection<String> keys) {
+        Map<String, RedisData> result = new LinkedHashMap<>();
+        for (String key : keys) {
+            RedisData local = pinned.isEmpty() ? localCache.get(key, false) : getLocal(key);
+            if (local != null) {
+                result.put(key, local);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * 把本地缓存的条目按写入redis时的格式编码（包括压缩），空值编码为长度为0的数组
+     */
+    public byte[] encodeLocal(String key, RedisData redisData) {
+        if (redisData.getData() == null) {
+            return new byte[0];
+        }
+        long rebuildCost = redisData.getRebuildCost() == null ? 0 : redisData.getRebuildCost();
+        return encode(key, redisData.getData(), redisData.getExpireTime(), rebuildCost);
+    }
+
+
+    /**
+     * 把快照中的条目直接加载到本地缓存，第一次被读取时再异步和redis核对，不一致则删除
+     * @param key
+     * @param type 反序列化的目标类型，空值时为null
+     * @param raw 按写入redis时的格式编码的数据
+     * @param logicalExpire 是否是带逻辑过期时间的数据
+     */
+    public void importLocal(String key, Class<?> type, byte[] raw, boolean logicalExpire) {
+        RedisData redisData = raw.length == 0 ? new RedisData() : toRedisData(decompress(key, raw), type, logicalExpire);
+        localCache.put(key, redisData, SystemConstants.LOCAL_CACHE_TTL);
+        unverified.put(key, raw);
+    }
+
+
+    /**
+     * 核对已经被读取过的快照条目：用一次MGET读取redis中的当前值，和快照中的不一致（包括redis中已经不存在）则删除本地缓存
+     * 没被读取过的条目不核对，随本地缓存的TTL自然过期
+     * @return 核对的条目个数
+     */
+    public int validateSnapshot() {
+        // redis不可用时先不核对，等恢复后再核对
+        if (!redisCircuitBreaker.isClosed()) {
+            return 0;
+        }
+        List<Map.Entry<String, byte[]>> batch = new ArrayList<>();
+        Map.Entry<String, byte[]> entry;
+        while (batch.size() < SystemConstants.SNAPSHOT_VALIDATE_BATCH && (entry = toValidate.poll()) != null) {
+            batch.add(entry);
+        }
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        byte[][] rawKeys = batch.stream().map(e -> e.getKey().getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+        List<byte[]> values = redisCircuitBreaker.execute(
+                () -> stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys)));
+        for (int i = 0; i < batch.size(); i++) {
+            byte[] current = values == null ? null : values.get(i);
+            if (current == null || !Arrays.equals(current, batch.get(i).getValue())) {
+                evictLocal(batch.get(i).getKey());
+            }
+        }
+        return batch.size();
+    }
+
+
+    /**
+     * 丢弃所有还没被读取过的快照条目的核对记录，本地缓存中的条目此时已经过了TTL
+     */
+    public void clearUnverified() {
+        unverified.clear();
+    }
+
+
+
+
+    /**
+     * 根据指定的key查询缓存，并反序列化为指定类型，利用缓存空值的方式解决缓存穿透问题
+     *
+     * 得先告诉是什么类型才能知道该返回什么类型，因此要传过来一个Class（泛型推断）
+     * 返回值不确定，要用泛型
+     * id的类型也不确定，也要用泛型
+     * 由于不知道应该往数据库哪个表查，因此也需要调用者提供数据库查询的逻辑（函数式编程），有参有返回值的函数用Function
+     *
+     * @param keyPrefix key的前缀
+     * @param id
+     * @param type 反序列化的目标类型
+     * @param dbFallback 从数据库查询的逻辑
+     * @param time 缓存的TTL
+     * @param unit 缓存的TTL单位
+     * @return
+     * @param <R> 反序列化的目标类型
+     * @param <ID> id的类型
+     */
+    public <R, ID> R queryWithPassThrough(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
+            Long time, TimeUnit unit) {
+        // 0. 布隆过滤器判断不存在，一定不存在，直接返回
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
+
+        String key = keyPrefix + id;
+        CacheMetrics.PrefixMetrics metrics = cacheMetrics.of(keyPrefix);
+        cacheMetrics.recordAccess(key);
+        trackHot(key, type, false);
+        // 1. 依次查询本地缓存和redis
+        RedisData cached = getCached(key, type, metrics);
+
+        // 2. 判断是否命中（命中空值时data为null，同样直接返回）
+        if (cached != null) {
+            // 3. 命中，直接返回
+            return type.cast(cached.getData());
+        }
+
+        // 4. 不存在/未命中，根据id查询数据库并写入缓存
+        // 同一个key在本节点只让一个线程去查数据库，其它线程等它的结果，避免热点key失效时的并发查询
+        metrics.miss();
+        return singleFlight.execute(key, () -> loadAndCache(key, id, dbFallback, time, unit, metrics));
+    }
+
+
+    /**
+     * 根据指定的key查询缓存，并反序列化为指定类型，利用缓存空值解决缓存穿透，利用互斥锁解决缓存击穿
+     * 本节点内先用single-flight合并并发的重建请求，只有合并后的那一个线程去竞争redis的互斥锁，
+     * 没抢到锁的线程不再递归重试，而是等待一小段时间后检查其它节点是否已经重建好了
+     * @param keyPrefix key的前缀
+     * @param id
+     * @param type 反序列化的目标类型
+     * @param lockKeyPrefix 互斥锁key的前缀
+     * @param dbFallback 从数据库查询的逻辑
+     * @param time 缓存的TTL
+     * @param unit 缓存的TTL单位
+     * @return
+     * @param <R> 反序列化的目标类型
+     * @param <ID> id的类型
+     */
+    public <R, ID> R queryWithMutex(
+            String keyPrefix, ID id, Class<R> type, String lockKeyPrefix,
+            Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
+
+        String key = keyPrefix + id;
+        CacheMetrics.PrefixMetrics metrics = cacheMetrics.of(keyPrefix);
+        cacheMetrics.recordAccess(key);
+        trackHot(key, type, false);
+        // 1. 依次查询本地缓存和redis
+        RedisData cached = getCached(key, type, metrics);
+        if (cached != null) {
+            return type.cast(cached.getData());
+        }
+
+        // 2. 未命中，本节点内合并后再去竞争互斥锁重建
+        metrics.miss();
+        return singleFlight.execute(key, () -> rebuildWithMutex(key, id, type, lockKeyPrefix + id, dbFallback, time, unit, metrics));
+    }
+
+
+    /**
+     * 持有互斥锁重建缓存，拿不到锁则等待其它节点重建
+     * @return
+     */
+    private <R, ID> R rebuildWithMutex(String key, ID id, Class<R> type, String lockKey,
+                                       Function<ID, R> dbFallback, Long time, TimeUnit unit,
+                                       CacheMetrics.PrefixMetrics metrics) {
+        for (int i = 0; i <= SystemConstants.MUTEX_MAX_RETRIES; i++) {
+            // 1. 获取互斥锁
+            if (tryLock(lockKey)) {
+                try {
+                    // 2. 获取锁成功后再次检测redis缓存是否存在，做DoubleCheck
+                    RedisData cached = getCached(key, type, null);
+                    if (cached != null) {
+                        return type.cast(cached.getData());
+                    }
+                    // 3. 仍然不存在，查询数据库并写入缓存
+                    return loadAndCache(key, id, dbFallback, time, unit, metrics);
+                } finally {
+                    // 4. 释放互斥锁
+                    unLock(lockKey);
+                }
+            }
+
+            // 5. 获取锁失败，说明其它节点正在重建，稍等一下再看缓存
+            metrics.lockContention();
+            try {
+                Thread.sleep(SystemConstants.MUTEX_RETRY_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            RedisData cached = getCached(key, type, null);
+            if (cached != null) {
+                return type.cast(cached.getData());
+            }
+        }
+
+        // 6. 等了多次仍然没有结果（比如持锁的节点挂了），直接查数据库兜底，不写缓存
+        log.warn("等待缓存重建超时，直接查询数据库，key = {}", key);
+        return load(id, dbFallback, metrics);
+    }
+
+
+    /**
+     * 根据布隆过滤器判断id是否可能存在，没有注册布隆过滤器的key前缀一律认为可能存在
+     */
+    private boolean mightExist(String keyPrefix, Object id) {
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter == null || bloomFilter.mightContain(id)) {
+            return true;
+        }
+        cacheMetrics.of(keyPrefix).bloomReject();
+        return false;
+    }
+
+
+    /**
+     * 依次查询本地缓存和redis
+     * @param key
+     * @param type 反序列化的目标类型
+     * @param metrics 记录命中的指标，DoubleCheck时传null，不重复统计
+     * @return 未命中返回null；命中空值时返回的RedisData的data为null
+     */
+    private <R> RedisData getCached(String key, Class<R> type, CacheMetrics.PrefixMetrics metrics) {
+        // 1. 先查本地缓存，命中（包括命中空值）则直接返回，不走网络
+        RedisData local = getLocal(key);
+        if (local != null) {
+            if (metrics != null) {
+                if (local.getData() == null) {
+                    metrics.nullHit();
+                } else {
+                    metrics.localHit();
+                }
+            }
+            return local;
+        }
+
+        // 2. 依次从堆外缓存和redis查询缓存
+        byte[] raw = getRawTiered(key);
+
+        // 3. 未命中
+        if (raw == null) {
+            return null;
+        }
+
+        // 4. 判断命中的是否是空值""
+        if (raw.length == 0) {
+            if (metrics != null) {
+                metrics.nullHit();
+            }
+            return putLocal(key, null, null, TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL));
+        }
+
+        // 5. 存在，反序列化为指定类型，回填本地缓存后返回
+        if (metrics != null) {
+            metrics.redisHit();
+        }
+        R r = codecOf(raw).decode(raw, type, false); // R的类型就是type
+        return putLocal(key, r, null, SystemConstants.LOCAL_CACHE_TTL);
+    }
+
+
+    /**
+     * 查询数据库并写入缓存，数据库中也不存在则缓存空值
+     * @return
+     */
+    private <R, ID> R loadAndCache(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit,
+                                   CacheMetrics.PrefixMetrics metrics) {
+        // 1. 先读版本号，再根据id查询数据库
+        long version = readVersion(key);
+        R r = load(id, dbFallback, metrics);
+
+        // 2. 数据库中也不存在，返回错误
+        if (r == null) {
+            // 将空值写入redis
+            long nullTtlMillis = ttlPolicyRegistry.nullTtlMillis(key);
+            if (setRawIfNewer(key, new byte[0], nullTtlMillis, version)) {    // 空值的有效期要设置的短一些
+                putLocal(key, null, null, nullTtlMillis);
+            }
+            // 返回null
+            return null;
+        }
+
+        // 3. 存在，带版本号写入redis（同时写入本地缓存），查询期间数据被更新过则不写入
+        long ttlMillis = ttlPolicyRegistry.ttlMillis(key, time, unit);
+        if (setRawIfNewer(key, encode(key, r, null, 0), ttlMillis, version)) {
+            putLocal(key, r, null, ttlMillis);
+        }
+
+        // 4. 返回
+        return r;
+    }
+
+
+    /**
+     * 按过期时间策略计算逻辑过期时间
+     */
+    private LocalDateTime logicalExpireTime(String key, Long time, TimeUnit unit) {
+        return LocalDateTime.now().plus(Duration.ofMillis(ttlPolicyRegistry.ttlMillis(key, time, unit)));
+    }
+
+
+    /**
+     * 查询数据库，并记录耗时和是否失败
+     */
+    private <R, ID> R load(ID id, Function<ID, R> dbFallback, CacheMetrics.PrefixMetrics metrics) {
+        long begin = System.currentTimeMillis();
+        boolean success = false;
+        try {
+            R r = dbFallback.apply(id);
+            success = true;
+            return r;
+        } finally {
+            metrics.recordLoad(System.currentTimeMillis() - begin, success);
+        }
+    }
+
+
+
+
+
+    /**
+     * 批量查询缓存，利用缓存空值解决缓存穿透
+     * 本地缓存没命中的key用一次MGET查redis，redis也没命中的id用一次批量查询查数据库，再用一次管道批量回填redis
+     * 无论查多少个id，都只需要固定次数的网络往返
+     * @param keyPrefix key的前缀
+     * @param ids 要查询的id，可以有重复
+     * @param type 反序列化的目标类型
+     * @param dbBatchFallback 根据一批id从数据库批量查询的逻辑，返回id -> 对象，数据库中不存在的id不用放进去
+     * @param time 缓存的TTL
+     * @param unit 缓存的TTL单位
+     * @return 和ids一一对应、顺序一致的结果，不存在的id对应的位置为null
+     * @param <R> 反序列化的目标类型
+     * @param <ID> id的类型
+     */
+    public <R, ID> List<R> queryBatch(
+            String keyPrefix, List<ID> ids, Class<R> type, Function<Collection<ID>, Map<ID, R>> dbBatchFallback,
+            Long time, TimeUnit unit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        CacheMetrics.PrefixMetrics metrics = cacheMetrics.of(keyPrefix);
+        // id -> 查询结果，包括不存在的id（值为null）
+        Map<ID, R> found = new HashMap<>(ids.size() * 2);
+
+        // 1. 先查本地缓存，布隆过滤器判断不存在的id直接当作不存在
+        List<ID> remoteIds = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (!mightExist(keyPrefix, id)) {
+                found.put(id, null);
+                continue;
+            }
+            String key = keyPrefix + id;
+            cacheMetrics.recordAccess(key);
+            trackHot(key, type, false);
+            RedisData local = getLocal(key);
+            byte[] offHeap;
+            if (local != null) {
+                if (local.getData() == null) {
+                    metrics.nullHit();
+                } else {
+                    metrics.localHit();
+                }
+                found.put(id, type.cast(local.getData()));
+            } else if (offHeapCache != null && (offHeap = offHeapCache.get(key)) != null) {
+                offHeap = decompress(key, offHeap);
+                // 堆外缓存命中，反序列化后回填本地缓存
+                if (offHeap.length == 0) {
+                    metrics.nullHit();
+                    putLocal(key, null, null, TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL));
+                    found.put(id, null);
+                } else {
+                    metrics.localHit();
+                    R r = codecOf(offHeap).decode(offHeap, type, false);
+                    putLocal(key, r, null, SystemConstants.LOCAL_CACHE_TTL);
+                    found.put(id, r);
+                }
+            } else {
+                remoteIds.add(id);
+            }
+        }
+
+        // 2. 本地缓存没命中的，用一次MGET查redis
+        List<ID> missIds = new ArrayList<>();
+        if (!remoteIds.isEmpty()) {
+            byte[][] rawKeys = remoteIds.stream()
+                    .map(id -> (keyPrefix + id).getBytes(StandardCharsets.UTF_8))
+                    .toArray(byte[][]::new);
+            // redis中查到的回填堆外缓存；redis不可用时返回堆外缓存中的旧数据
+            List<byte[]> values = redisCircuitBreaker.execute(() -> {
+                List<byte[]> fetched = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+                for (int i = 0; fetched != null && i < remoteIds.size(); i++) {
+                    if (fetched.get(i) != null) {
+                        putOffHeap(keyPrefix + remoteIds.get(i), fetched.get(i), -1);
+                    }
+                }
+                return fetched;
+            }, () -> remoteIds.stream().map(id -> getStale(keyPrefix + id)).collect(Collectors.toList()));
+            for (int i = 0; i < remoteIds.size(); i++) {
+                ID id = remoteIds.get(i);
+                String key = keyPrefix + id;
+                byte[] raw = values == null ? null : decompress(key, values.get(i));
+                if (raw == null) {
+                    // 2.1 未命中，稍后查数据库
+                    metrics.miss();
+                    missIds.add(id);
+                } else if (raw.length == 0) {
+                    // 2.2 命中空值
+                    metrics.nullHit();
+                    putLocal(key, null, null, TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL));
+                    found.put(id, null);
+                } else {
+                    // 2.3 命中，反序列化后回填本地缓存
+                    metrics.redisHit();
+                    R r = codecOf(raw).decode(raw, type, false);
+                    putLocal(key, r, null, SystemConstants.LOCAL_CACHE_TTL);
+                    found.put(id, r);
+                }
+            }
+        }
+
+        // 3. redis也没命中的，用一次批量查询查数据库，再用一次管道回填redis
+        if (!missIds.isEmpty()) {
+            // 先读版本号再查数据库
+            List<Long> versions = readVersions(missIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList()));
+            Map<ID, R> loaded = load(missIds, dbBatchFallback, metrics);
+            // 每个key按过期时间策略单独计算TTL，同一批回填的key不会同时过期
+            Map<ID, Long> ttls = new HashMap<>(missIds.size() * 2);
+            for (ID id : missIds) {
+                String key = keyPrefix + id;
+                ttls.put(id, loaded.get(id) == null ? ttlPolicyRegistry.nullTtlMillis(key) : ttlPolicyRegistry.ttlMillis(key, time, unit));
+            }
+            // 数据库中也不存在，缓存空值
+            List<String> missKeys = new ArrayList<>(missIds.size());
+            List<byte[]> encoded = new ArrayList<>(missIds.size());
+            List<Long> missTtls = new ArrayList<>(missIds.size());
+            for (ID id : missIds) {
+                R r = loaded.get(id);
+                missKeys.add(keyPrefix + id);
+                encoded.add(r == null ? new byte[0] : encode(keyPrefix + id, r, null, 0));
+                missTtls.add(ttls.get(id));
+            }
+            // 和单个key的重建一样带版本号回填，查询数据库期间被更新过的key不会被旧数据覆盖；redis不可用时只写本地
+            List<Boolean> written = redisCircuitBreaker.execute(
+                    () -> setRawIfNewerPipelined(missKeys, encoded, missTtls, versions, false), () -> null);
+            for (int i = 0; i < missIds.size(); i++) {
+                ID id = missIds.get(i);
+                R r = loaded.get(id);
+                found.put(id, r);
+                if (written != null && !written.get(i)) {
+                    // 本节点的本地缓存里可能也是旧数据，一并删除
+                    evictLocal(missKeys.get(i));
+                    continue;
+                }
+                putOffHeap(missKeys.get(i), encoded.get(i), missTtls.get(i));
+                putLocal(missKeys.get(i), r, null, missTtls.get(i));
+            }
+        }
 
-    /**
-     * 将任意Java对象序列化为json并存储在string类型的key中，并且可以设置TTL过期时间
-     * @param key
-     * @param value 要存储的Java对象
-     * @param time
-     * @param unit
-     */
-    public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        // 4. 按调用者传入的顺序组装结果
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            result.add(found.get(id));
+        }
+        return result;
     }
 
 
-    /**
-     * 将任意Java对象序列化为json并存储在string类型的key中，并且可以设置逻辑过期时间，用于处理缓存击穿问题
-     * @param key
-     * @param value 要存储的Java对象
-     * @param time
-     * @param unit
-     */
-    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        // 封装成RedisData
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        // 设置逻辑过期，当前时间加上逻辑过期时间
-        redisData.setExpireTime(LocalDateTime.now().plus(Duration.of(time, unit.toChronoUnit())));
 
-        // 写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));  // 逻辑过期本质是永久有效，因此不能设置TTL过期时间
-    }
 
 
+    // 线程池
+    @Resource
+    private CacheRebuildScheduler cacheRebuildScheduler;
 
 
     /**
-     * 根据指定的key查询缓存，并反序列化为指定类型，利用缓存空值的方式解决缓存穿透问题
-     *
-     * 得先告诉是什么类型才能知道该返回什么类型，因此要传过来一个Class（泛型推断）
-     * 返回值不确定，要用泛型
-     * id的类型也不确定，也要用泛型
-     * 由于不知道应该往数据库哪个表查，因此也需要调用者提供数据库查询的逻辑（函数式编程），有参有返回值的函数用Function
-     *
+     * 根据指定的key查询缓存，并反序列化为指定类型，利用概率性提前刷新（XFetch）解决缓存击穿问题
+     * 缓存中除了逻辑过期时间，还记录了上一次重建的耗时delta，每次读取时按 now - delta * beta * ln(random) >= 过期时间 判断是否提前刷新
+     * 越接近过期、重建越慢，提前刷新的概率就越大，同一批写入的key会在过期前的不同时刻被分散刷新，不会都在同一时刻抢锁重建
+     * 与逻辑过期不同的是，缓存未命中时会同步查询数据库并写入缓存，不需要提前预热
      * @param keyPrefix key的前缀
      * @param id
      * @param type 反序列化的目标类型
+     * @param lockKeyPrefix 互斥锁key的前缀
      * @param dbFallback 从数据库查询的逻辑
-     * @param time 缓存的TTL
-     * @param unit 缓存的TTL单位
+     * @param time 逻辑过期时间
+     * @param unit 逻辑过期时间的单位
      * @return
      * @param <R> 反序列化的目标类型
      * @param <ID> id的类型
      */
-    public <R, ID> R queryWithPassThrough(
-            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
-            Long time, TimeUnit unit) {
+    public <R, ID> R queryWithEarlyRefresh(String keyPrefix, ID id, Class<R> type,
+                                           String lockKeyPrefix, Function<ID, R> dbFallback,
+                                           Long time, TimeUnit unit) {
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
+
         String key = keyPrefix + id;
-        // 1. 从redis查询缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        String lockKey = lockKeyPrefix + id;
+        CacheMetrics.PrefixMetrics metrics = cacheMetrics.of(keyPrefix);
+        cacheMetrics.recordAccess(key);
+        trackHot(key, type, true);
+        // 1. 先查本地缓存
+        RedisData local = getLocal(key);
+        if (local != null) {
+            // 1.1 命中空值，或者还不需要刷新，直接返回
+            if (local.getExpireTime() == null) {
+                metrics.nullHit();
+                return null;
+            }
+            metrics.localHit();
+            if (!shouldRefresh(local.getExpireTime(), local.getRebuildCost())) {
+                return type.cast(local.getData());
+            }
+            // 1.2 需要刷新，异步重建，当前请求先返回现有的值
+            refreshAsync(key, id, lockKey, dbFallback, time, unit, metrics);
+            return type.cast(local.getData());
+        }
+
+        // 2. 从redis查询缓存
+        byte[] raw = getRawTiered(key);
 
-        // 2. 判断是否存在
-        if (StrUtil.isNotBlank(json)) { // redis中查出空值""这里也是false
-            // 3. 存在，反序列化为指定类型后返回
-            return JSONUtil.toBean(json, type); // R的类型就是type
+        // 3. 未命中，同步查询数据库重建（本节点内合并）
+        if (raw == null) {
+            metrics.miss();
+            return singleFlight.execute(key, () -> rebuildWithCost(key, id, dbFallback, time, unit, metrics));
         }
 
-        // 判断命中的是否是空值
-        if ("".equals(json)) {
+        // 4. 命中空值
+        if (raw.length == 0) {
+            metrics.nullHit();
+            putLocal(key, null, null, TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL));
             return null;
         }
 
-        // 4. 不存在/未命中。
-        // 如果不是空值则根据id查询数据库
-        R r = dbFallback.apply(id);
-
-        // 5. 数据库中也不存在，返回错误
-        if (r == null) {
-            // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);    // 空值的有效期要设置的短一些
-            // 返回null
-            return null;
+        // 5. 命中，判断是否需要提前刷新
+        metrics.redisHit();
+        CacheCodec codec = codecOf(raw);
+        LocalDateTime expireTime = codec.readExpireTime(raw);
+        long rebuildCost = codec.readRebuildCost(raw);
+        R r = codec.decode(raw, type, true);
+        if (shouldRefresh(expireTime, rebuildCost)) {
+            // 5.1 需要刷新，异步重建，当前请求先返回现有的值（已经过期的也一样）
+            if (!LocalDateTime.now().isBefore(expireTime)) {
+                metrics.staleServe();
+            }
+            refreshAsync(key, id, lockKey, dbFallback, time, unit, metrics);
+        } else {
+            // 5.2 不需要刷新，回填本地缓存
+            putLocal(key, r, expireTime, rebuildCost, SystemConstants.LOCAL_CACHE_TTL);
         }
+        return r;
+    }
 
-        // 6. 存在，写入redis
-        this.set(key, r, time, unit);
 
-        // 7. 返回
-        return r;
+    /**
+     * XFetch：判断是否需要提前刷新
+     * -ln(random)服从指数分布，距离过期越近、重建耗时越长，满足条件的概率越大；已经过期则一定刷新
+     * @param expireTime 逻辑过期时间
+     * @param rebuildCost 上一次重建的耗时（毫秒）
+     */
+    private boolean shouldRefresh(LocalDateTime expireTime, Long rebuildCost) {
+        long expireAt = expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long delta = rebuildCost == null ? 0 : rebuildCost;
+        double gap = -delta * SystemConstants.XFETCH_BETA * Math.log(ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + gap >= expireAt;
     }
 
 
+    /**
+     * 异步刷新缓存，本节点同一个key同时只有一个刷新任务，多个节点之间用互斥锁保证只有一个去查数据库
+     */
+    private <R, ID> void refreshAsync(String key, ID id, String lockKey,
+                                      Function<ID, R> dbFallback, Long time, TimeUnit unit,
+                                      CacheMetrics.PrefixMetrics metrics) {
+        // redis不可用时不刷新，继续返回现有的值
+        if (!redisCircuitBreaker.isClosed()) {
+            return;
+        }
+        // 调度器按key去重，提前刷新窗口内的其它请求不会重复提交，也不会都去抢redis的锁
+        cacheRebuildScheduler.submit(key, () -> {
+            if (!tryLock(lockKey)) {
+                // 其它节点正在刷新
+                metrics.lockContention();
+                return;
+            }
+            try {
+                rebuildWithCost(key, id, dbFallback, time, unit, metrics);
+            } finally {
+                unLock(lockKey);
+            }
+        });
+    }
+
 
+    /**
+     * 查询数据库重建缓存，并记录重建耗时
+     * redis中的key设置为逻辑过期时间的2倍的TTL，长期没人访问的key会自动删除
+     */
+    private <R, ID> R rebuildWithCost(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit,
+                                      CacheMetrics.PrefixMetrics metrics) {
+        // 1. 先读版本号，再查询数据库并计时
+        long version = readVersion(key);
+        long begin = System.currentTimeMillis();
+        R r = load(id, dbFallback, metrics);
+        long rebuildCost = System.currentTimeMillis() - begin;
 
+        // 2. 数据库中也不存在，缓存空值
+        if (r == null) {
+            long nullTtlMillis = ttlPolicyRegistry.nullTtlMillis(key);
+            if (setRawIfNewer(key, new byte[0], nullTtlMillis, version)) {
+                putLocal(key, null, null, nullTtlMillis);
+            }
+            return null;
+        }
 
-    // 线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+        // 3. 带版本号写入redis，逻辑过期时间、重建耗时和数据一起编码
+        long ttlMillis = ttlPolicyRegistry.ttlMillis(key, time, unit);
+        LocalDateTime expireTime = LocalDateTime.now().plus(Duration.ofMillis(ttlMillis));
+        if (setRawIfNewer(key, encode(key, r, expireTime, rebuildCost), ttlMillis * 2, version)) {
+            putLocal(key, r, expireTime, rebuildCost, SystemConstants.LOCAL_CACHE_TTL);
+        }
+        return r;
+    }
 
 
     /**
@@ -141,24 +1070,46 @@ public class CacheClient {
     public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type,
                                             String lockKeyPrefix, Function<ID, R> dbFallback,
                                             Long time, TimeUnit unit) {
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
+
         String key = keyPrefix + id;
+        CacheMetrics.PrefixMetrics metrics = cacheMetrics.of(keyPrefix);
+        cacheMetrics.recordAccess(key);
+        trackHot(key, type, true);
+        // 0. 先查本地缓存，命中且逻辑上未过期则直接返回，已过期则继续走redis判断是否需要重建
+        RedisData local = getLocal(key);
+        if (local != null && local.getExpireTime() != null && LocalDateTime.now().isBefore(local.getExpireTime())) {
+            metrics.localHit();
+            return type.cast(local.getData());
+        }
+
         // 1. 从redis查询缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] raw = getRawTiered(key);
 
         // 2. 判断是否命中
-        if (StrUtil.isBlank(json)) {
+        if (raw == null || raw.length == 0) {
             // 3. 如果未命中直接返回空
+            metrics.miss();
             return null;
         }
 
-        // 4. 命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        // 4. 命中，反序列化为对象
+        CacheCodec codec = codecOf(raw);
+        LocalDateTime expireTime = codec.readExpireTime(raw);
+        R r = codec.decode(raw, type, true);
 
         // 5. 判断是否过期
         if (LocalDateTime.now().isBefore(expireTime)) {
-            // 5.1 未过期，直接返回对象
+            // 5.1 未过期，回填本地缓存后直接返回对象
+            metrics.redisHit();
+            putLocal(key, r, expireTime, SystemConstants.LOCAL_CACHE_TTL);
+            return r;
+        }
+        metrics.staleServe();
+        // redis不可用时不重建，直接返回过期的信息
+        if (!redisCircuitBreaker.isClosed()) {
             return r;
         }
 
@@ -170,35 +1121,51 @@ public class CacheClient {
         // 6.2 判断是否获取锁成功
         if (getLock) {
             // 6.3 获取成功，需要再次检测redis缓存是否过期，做DoubleCheck，如果存在则无需重建缓存
-            json = stringRedisTemplate.opsForValue().get(key);
+            byte[] stale = raw;
+            byte[] fetched = redisCircuitBreaker.execute(() -> getRaw(key), () -> stale);
+            raw = decompress(key, fetched);
 
-            if (StrUtil.isBlank(json)) {
+            if (raw == null || raw.length == 0) {
+                unLock(lockKey);
                 return null;
             }
 
-            redisData = JSONUtil.toBean(json, RedisData.class);
-            r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-            expireTime = redisData.getExpireTime();
-
-            if (LocalDateTime.now().isBefore(expireTime)) {
-                return r;
+            // 二进制格式只读头部的过期时间，没过期才需要反序列化数据
+            codec = codecOf(raw);
+            LocalDateTime freshExpireTime = codec.readExpireTime(raw);
+            if (LocalDateTime.now().isBefore(freshExpireTime)) {
+                unLock(lockKey);
+                // 其它节点已经重建过，本节点的堆外缓存和本地缓存中还是过期的旧数据，用redis中的新数据覆盖
+                R fresh = codec.decode(raw, type, true);
+                if (fetched != stale) {
+                    putOffHeap(key, fetched, -1);
+                }
+                putLocal(key, fresh, freshExpireTime, SystemConstants.LOCAL_CACHE_TTL);
+                return fresh;
             }
 
-            // 6.4 DoubleCheck后如果redis缓存仍是过期的，则开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+            // 6.4 DoubleCheck后如果redis缓存仍是过期的，则提交给重建调度器，实现缓存重建
+            boolean submitted = cacheRebuildScheduler.submit(key, () -> {
                 try {
-                    // 查询数据库
-                    R r1 = dbFallback.apply(id);
-                    // 写入redis
-                    this.setWithLogicalExpire(key, r1, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    // 先读版本号，再查询数据库
+                    long version = readVersion(key);
+                    R r1 = load(id, dbFallback, metrics);
+                    // 带版本号写入redis，重建期间店铺被更新过则放弃，不会用旧数据覆盖新数据
+                    // 写入后通知所有节点删除本地缓存，否则其它节点会一直从堆外缓存读到过期的旧数据
+                    if (this.setWithLogicalExpire(key, r1, time, unit, version)) {
+                        broadcastEvict(Collections.singletonList(key));
+                    }
                 } finally { // 释放锁要放在finally里面确保一定会执行
                     // 释放互斥锁
                     unLock(lockKey);
                 }
-
             });
+            // 6.5 重复提交或队列已满，任务不会执行，锁要在这里释放
+            if (!submitted) {
+                unLock(lockKey);
+            }
+        } else {
+            metrics.lockContention();
         }
 
         // 7. 返回过期的信息
@@ -206,6 +1173,430 @@ public class CacheClient {
     }
 
 
+    /**
+     * 根据数据本身选择解码器
+     */
+    private CacheCodec codecOf(byte[] raw) {
+        for (CacheCodec codec : codecs) {
+            if (codec.canDecode(raw)) {
+                return codec;
+            }
+        }
+        throw new IllegalStateException("没有能解码该数据的编码器");
+    }
+
+
+    /**
+     * 从redis读取原始字节
+     * @return 不存在返回null，空值返回长度为0的数组
+     */
+    private byte[] getRaw(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+    }
+
+
+    /**
+     * 向redis写入原始字节（同时写入堆外缓存）
+     * @param ttlMillis 过期时间，小于0表示永久有效
+     */
+    private void setRaw(String key, byte[] value, long ttlMillis) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        Expiration expiration = ttlMillis < 0 ? Expiration.persistent() : Expiration.milliseconds(ttlMillis);
+        redisCircuitBreaker.run(() -> stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.set(rawKey, value, expiration, RedisStringCommands.SetOption.upsert())));
+        putOffHeap(key, value, ttlMillis);
+    }
+
+
+    /**
+     * 先查堆外缓存，没有再查redis，redis中查到的回填堆外缓存
+     * redis不可用时返回堆外缓存中已经过期的旧数据
+     * 堆外缓存中存的是压缩后的数据，返回前解压
+     * @return 解压后的数据，不存在返回null，空值返回长度为0的数组
+     */
+    private byte[] getRawTiered(String key) {
+        byte[] raw = offHeapCache == null ? null : offHeapCache.get(key);
+        if (raw == null) {
+            raw = redisCircuitBreaker.execute(() -> {
+                byte[] fetched = getRaw(key);
+                if (fetched != null) {
+                    putOffHeap(key, fetched, -1);
+                }
+                return fetched;
+            }, () -> getStale(key));
+        }
+        return decompress(key, raw);
+    }
+
+
+    /**
+     * 编码，超过阈值的再压缩，按key前缀记录压缩率和耗时
+     */
+    private byte[] encode(String key, Object value, LocalDateTime expireTime, long rebuildCost) {
+        byte[] bytes = writeCodec.encode(value, expireTime, rebuildCost);
+        if (compressThreshold <= 0 || bytes.length < compressThreshold) {
+            return bytes;
+        }
+        long begin = System.nanoTime();
+        byte[] compressed = CacheCompressor.compress(bytes);
+        cacheMetrics.of(prefixOf(key)).recordCompress(bytes.length, compressed.length, System.nanoTime() - begin);
+        return compressed;
+    }
+
+
+    /**
+     * 压缩过的数据解压，按key前缀记录耗时；没有压缩过的原样返回
+     */
+    private byte[] decompress(String key, byte[] raw) {
+        if (!CacheCompressor.isCompressed(raw)) {
+            return raw;
+        }
+        long begin = System.nanoTime();
+        byte[] bytes = CacheCompressor.decompress(raw);
+        cacheMetrics.of(prefixOf(key)).recordDecompress(System.nanoTime() - begin);
+        return bytes;
+    }
+
+
+    /**
+     * key所属的前缀，和TtlPolicyRegistry一样按最长前缀匹配，候选为查询时传入过的keyPrefix和配置了过期时间策略的前缀
+     * 这样cache:shop:type不会被算到cache:shop:下；都匹配不上时取最后一个冒号及之前的部分
+     */
+    private String prefixOf(String key) {
+        String matched = longestPrefix(key, cacheMetrics.prefixes(), null);
+        matched = longestPrefix(key, ttlPolicyRegistry.getPolicies().keySet(), matched);
+        return matched != null ? matched : key.substring(0, key.lastIndexOf(':') + 1);
+    }
+
+
+    private static String longestPrefix(String key, Collection<String> prefixes, String matched) {
+        for (String prefix : prefixes) {
+            if ((matched == null || prefix.length() > matched.length()) && key.startsWith(prefix)) {
+                matched = prefix;
+            }
+        }
+        return matched;
+    }
+
+
+    /**
+     * 堆外缓存中的旧数据，包括已经过期的
+     */
+    private byte[] getStale(String key) {
+        return offHeapCache == null ? null : offHeapCache.getStale(key);
+    }
+
+
+    /**
+     * 写入堆外缓存，有效期不超过OFF_HEAP_TTL，跨节点的失效通知丢失时最多脏这么久
+     * @param ttlMillis redis中的过期时间，小于0表示永久有效
+     */
+    private void putOffHeap(String key, byte[] value, long ttlMillis) {
+        if (offHeapCache != null) {
+            offHeapCache.put(key, value, ttlMillis < 0 ? SystemConstants.OFF_HEAP_TTL : Math.min(ttlMillis, SystemConstants.OFF_HEAP_TTL));
+        }
+    }
+
+
+    /**
+     * 按逻辑过期带版本号写入
+     * @param version 查询数据库之前读到的版本号
+     * @return 是否写入成功
+     */
+    private boolean setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, long version) {
+        LocalDateTime expireTime = logicalExpireTime(key, time, unit);
+        if (setRawIfNewer(key, encode(key, value, expireTime, 0), -1, version)) {
+            putLocal(key, value, expireTime, SystemConstants.LOCAL_CACHE_TTL);
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * 读取key当前的版本号，从来没有更新过的key版本号为0
+     */
+    private long readVersion(String key) {
+        byte[] versionKey = versionKey(key);
+        // redis不可用时当作0，恢复后带着0写入一定会被拒绝，不会覆盖更新后的数据
+        byte[] raw = redisCircuitBreaker.execute(
+                () -> stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(versionKey)), () -> null);
+        return raw == null ? 0 : Long.parseLong(new String(raw, StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * 批量读取版本号，多个GET用管道一次发出去，redis不可用时全部当作0
+     * @return 和keys顺序一致
+     */
+    private List<Long> readVersions(List<String> keys) {
+        List<Object> results = redisCircuitBreaker.execute(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.get(versionKey(key));
+            }
+            return null;
+        }), () -> null);
+        List<Long> versions = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Object version = results == null ? null : results.get(i);
+            versions.add(version == null ? 0L : Long.parseLong(version.toString()));
+        }
+        return versions;
+    }
+
+
+    /**
+     * 用管道批量带版本号写入，每个key一条EVALSHA，必须在熔断器中调用，redis调用失败时抛出异常
+     * @param ttls 每个key的过期时间（毫秒），小于0表示永久有效
+     * @param versions 每个key查询数据库之前读到的版本号
+     * @param onlyIfAbsent 是否只写不存在的key
+     * @return 每个key是否写入成功，和keys顺序一致
+     */
+    private List<Boolean> setRawIfNewerPipelined(List<String> keys, List<byte[]> values, List<Long> ttls,
+                                                 List<Long> versions, boolean onlyIfAbsent) {
+        String sha1 = SET_IF_NEWER_SCRIPT.getSha1();
+        byte[] script = SET_IF_NEWER_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        byte[] absentFlag = (onlyIfAbsent ? "1" : "0").getBytes(StandardCharsets.UTF_8);
+        // 管道中不能处理NOSCRIPT，先确保脚本已经加载
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.scriptLoad(script));
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < keys.size(); i++) {
+                String key = keys.get(i);
+                connection.evalSha(sha1, ReturnType.INTEGER, 2,
+                        key.getBytes(StandardCharsets.UTF_8), versionKey(key), values.get(i),
+                        String.valueOf(versions.get(i)).getBytes(StandardCharsets.UTF_8),
+                        String.valueOf(ttls.get(i)).getBytes(StandardCharsets.UTF_8), absentFlag);
+            }
+            return null;
+        });
+        return results.stream().map(r -> Long.valueOf(1L).equals(r)).collect(Collectors.toList());
+    }
+
+
+    /**
+     * 带版本号向redis写入原始字节，当前版本号大于写入者读到的版本号时拒绝写入
+     * @param ttlMillis 过期时间，小于0表示永久有效
+     * @param version 写入者查询数据库之前读到的版本号
+     * @return 是否写入成功
+     */
+    private boolean setRawIfNewer(String key, byte[] value, long ttlMillis, long version) {
+        byte[][] keysAndArgs = {
+                key.getBytes(StandardCharsets.UTF_8),
+                versionKey(key),
+                value,
+                String.valueOf(version).getBytes(StandardCharsets.UTF_8),
+                String.valueOf(ttlMillis).getBytes(StandardCharsets.UTF_8)
+        };
+        Long result = redisCircuitBreaker.execute(() -> stringRedisTemplate.execute((RedisCallback<Long>) connection -> {
+            try {
+                return connection.evalSha(SET_IF_NEWER_SCRIPT.getSha1(), ReturnType.INTEGER, 2, keysAndArgs);
+            } catch (Exception e) {
+                // 脚本还没有加载到redis中（NOSCRIPT），发送完整脚本执行一次，之后就可以用evalSha了
+                if (!String.valueOf(e.getMessage()).contains("NOSCRIPT")) {
+                    throw e;
+                }
+                return connection.eval(SET_IF_NEWER_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8),
+                        ReturnType.INTEGER, 2, keysAndArgs);
+            }
+        }), () -> null);
+        // redis不可用，只写本地，避免每次请求都查数据库
+        if (result == null) {
+            putOffHeap(key, value, ttlMillis);
+            return true;
+        }
+        boolean written = result == 1L;
+        if (written) {
+            putOffHeap(key, value, ttlMillis);
+        } else {
+            // 本节点的本地缓存里可能也是旧数据，一并删除
+            evictLocal(key);
+            log.info("缓存重建期间数据已被更新，放弃写入，key = {}", key);
+        }
+        return written;
+    }
+
+
+    /**
+     * 缓存key对应的版本号key，hash缓存的字段级更新和回填也用同样的版本号key
+     */
+    static byte[] versionKey(String key) {
+        return ("{" + key + "}" + RedisConstants.CACHE_VERSION_SUFFIX).getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * 写入本地缓存
+     * @param key
+     * @param value 反序列化后的对象，为null表示缓存空值
+     * @param expireTime 逻辑过期时间，没有则为null
+     * @param ttlMillis 本地缓存的有效期，不会超过LOCAL_CACHE_TTL
+     * @return 写入本地缓存的条目
+     */
+    private RedisData putLocal(String key, Object value, LocalDateTime expireTime, long ttlMillis) {
+        return putLocal(key, value, expireTime, 0, ttlMillis);
+    }
+
+
+    /**
+     * 写入本地缓存，同时记录重建耗时
+     * @param rebuildCost 重建耗时（毫秒）
+     */
+    private RedisData putLocal(String key, Object value, LocalDateTime expireTime, long rebuildCost, long ttlMillis) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(expireTime);
+        redisData.setRebuildCost(rebuildCost);
+        localCache.put(key, redisData, Math.min(ttlMillis, SystemConstants.LOCAL_CACHE_TTL));
+        PinnedEntry entry = pinned.get(key);
+        if (entry != null) {
+            entry.value = redisData;
+        }
+        return redisData;
+    }
+
+
+    private void fireLocalChange(String key) {
+        for (Consumer<String> listener : localChangeListeners) {
+            listener.accept(key);
+        }
+    }
+
+
+    /**
+     * 查询本地缓存，热点key的副本优先
+     * @return 未命中返回null
+     */
+    private RedisData getLocal(String key) {
+        // 快照加载的条目第一次被读取，加入待核对队列，本次先返回快照中的值
+        if (!unverified.isEmpty()) {
+            byte[] raw = unverified.remove(key);
+            if (raw != null) {
+                toValidate.add(new AbstractMap.SimpleImmutableEntry<>(key, raw));
+            }
+        }
+        if (!pinned.isEmpty()) {
+            PinnedEntry entry = pinned.get(key);
+            if (entry != null && entry.value != null) {
+                return entry.value;
+            }
+        }
+        return localCache.get(key, false);
+    }
+
+
+    /**
+     * 记录一次访问，访问次数超过阈值的key提升为热点，并通知其它节点
+     * @param logicalExpire 这个key是否是带逻辑过期时间写入的，刷新副本时要按同样的方式解码
+     */
+    private void trackHot(String key, Class<?> type, boolean logicalExpire) {
+        if (!hotKeyDetector.record(key) || pinned.containsKey(key)
+                || pinned.size() >= SystemConstants.HOT_KEY_MAX_PINNED) {
+            return;
+        }
+        // 副本的值先用本地缓存里已有的，没有则等本次查询回填或下一次定时刷新
+        PinnedEntry entry = new PinnedEntry(type, logicalExpire);
+        entry.value = localCache.get(key, false);
+        if (pinned.putIfAbsent(key, entry) == null) {
+            log.info("提升为热点key：{}", key);
+            redisCircuitBreaker.run(() -> stringRedisTemplate.convertAndSend(RedisConstants.CACHE_HOT_KEY_CHANNEL, key), () -> {
+            });
+        }
+    }
+
+
+    /**
+     * 热点探测的滑动窗口前进一个槽
+     */
+    @Scheduled(fixedRate = SystemConstants.HOT_KEY_SLOT_MILLIS)
+    public void rotateHotKeyWindow() {
+        hotKeyDetector.rotate();
+    }
+
+
+    /**
+     * 刷新热点key的副本：先把已经冷却的key降级，剩下的用一次MGET从redis重新读取
+     */
+    @Scheduled(fixedRate = SystemConstants.HOT_KEY_REFRESH_INTERVAL)
+    public void refreshPinned() {
+        // redis不可用时保留现有的副本
+        if (pinned.isEmpty() || !redisCircuitBreaker.isClosed()) {
+            return;
+        }
+        // 1. 降级已经冷却的key
+        pinned.keySet().removeIf(key -> {
+            boolean cold = hotKeyDetector.isCold(key);
+            if (cold) {
+                log.info("热点key已冷却：{}", key);
+            }
+            return cold;
+        });
+        if (pinned.isEmpty()) {
+            return;
+        }
+
+        // 2. 一次MGET读取所有热点key
+        List<String> keys = new ArrayList<>(pinned.keySet());
+        byte[][] rawKeys = keys.stream().map(key -> key.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+        List<byte[]> values = redisCircuitBreaker.execute(
+                () -> stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys)), () -> null);
+        if (values == null) {
+            return;
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            PinnedEntry entry = pinned.get(keys.get(i));
+            if (entry == null) {
+                continue;
+            }
+            byte[] raw = values.get(i);
+            try {
+                entry.value = toRedisData(decompress(keys.get(i), raw), entry.type, entry.logicalExpire);
+            } catch (Exception e) {
+                log.error("刷新热点key副本失败，key = {}", keys.get(i), e);
+                entry.value = null;
+            }
+        }
+    }
+
+
+    /**
+     * 把redis中读到的原始数据转换为本地缓存的条目
+     * @return redis中不存在返回null
+     */
+    private RedisData toRedisData(byte[] raw, Class<?> type, boolean logicalExpire) {
+        if (raw == null) {
+            return null;
+        }
+        RedisData redisData = new RedisData();
+        if (raw.length == 0) {
+            return redisData;
+        }
+        CacheCodec codec = codecOf(raw);
+        redisData.setData(codec.decode(raw, type, logicalExpire));
+        if (logicalExpire) {
+            redisData.setExpireTime(codec.readExpireTime(raw));
+            redisData.setRebuildCost(codec.readRebuildCost(raw));
+        }
+        return redisData;
+    }
+
+
+    /**
+     * 热点key的本地副本
+     */
+    private static class PinnedEntry {
+        private final Class<?> type;
+        private final boolean logicalExpire;
+        // 为null表示还没有加载，读取时走普通的本地缓存和redis
+        private volatile RedisData value;
+
+        PinnedEntry(Class<?> type, boolean logicalExpire) {
+            this.type = type;
+            this.logicalExpire = logicalExpire;
+        }
+    }
+
+
     /**
      * 尝试获取锁
      * @param key 这里的锁其实就是redis中的一个key
@@ -213,7 +1604,10 @@ public class CacheClient {
      */
     private boolean tryLock(String key) {
         // 锁也要设有效期，防止迟迟得不到释放也能通过有效期来释放锁
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        // redis不可用时当作获取成功，只靠本节点的single-flight合并并发的重建
+        Boolean flag = redisCircuitBreaker.execute(
+                () -> stringRedisTemplate.opsForValue().setIfAbsent(key, "1", RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS),
+                () -> true);
         return BooleanUtil.isTrue(flag);    // 这里最好不要直接返回flag，防止自动拆箱时出现空指针异常
     }
 
@@ -223,7 +1617,7 @@ public class CacheClient {
      * @param key
      */
     private void unLock(String key) {
-        stringRedisTemplate.delete(key);
+        redisCircuitBreaker.execute(() -> stringRedisTemplate.delete(key), () -> null);
     }
 
 
@@ -0,0 +1,65 @@
+package com.hmdp.utils;
+
+import java.time.LocalDateTime;
+
+/**
+ * 缓存值的编解码器
+ * CacheClient按配置的编码器写入，读取时根据数据本身判断用哪个编码器解码，因此切换编码格式期间新旧数据都能正常读取
+ */
+
+public interface CacheCodec {
+
+    /**
+     * 编码器名称，对应配置项 hmdp.cache.codec
+     */
+    String name();
+
+    /**
+     * 判断这段数据是否是本编码器写入的
+     * @param bytes redis中取出的原始数据，不为空
+     */
+    boolean canDecode(byte[] bytes);
+
+    /**
+     * 编码
+     * @param value 要存储的Java对象
+     * @param expireTime 逻辑过期时间，为null表示没有逻辑过期
+     * @return
+     */
+    default byte[] encode(Object value, LocalDateTime expireTime) {
+        return encode(value, expireTime, 0);
+    }
+
+    /**
+     * 编码，同时记录重建这个值的耗时
+     * @param value 要存储的Java对象
+     * @param expireTime 逻辑过期时间，为null表示没有逻辑过期
+     * @param rebuildCost 重建耗时（毫秒），0表示不记录
+     * @return
+     */
+    byte[] encode(Object value, LocalDateTime expireTime, long rebuildCost);
+
+    /**
+     * 只读取逻辑过期时间，不需要反序列化数据本身时使用
+     * @param bytes 带逻辑过期时间的数据
+     * @return 逻辑过期时间
+     */
+    LocalDateTime readExpireTime(byte[] bytes);
+
+    /**
+     * 只读取重建耗时
+     * @param bytes 带逻辑过期时间的数据
+     * @return 重建耗时（毫秒），没有记录则为0
+     */
+    long readRebuildCost(byte[] bytes);
+
+    /**
+     * 解码
+     * @param bytes redis中取出的原始数据
+     * @param type 反序列化的目标类型
+     * @param logicalExpire 数据是否是带逻辑过期时间写入的
+     * @return
+     * @param <R> 反序列化的目标类型
+     */
+    <R> R decode(byte[] bytes, Class<R> type, boolean logicalExpire);
+}
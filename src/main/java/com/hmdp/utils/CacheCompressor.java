@@ -0,0 +1,96 @@
+package com.hmdp.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 缓存值的压缩，包在编码器的输出外面，和编码格式无关
+ * 格式：魔数(1字节) + 算法(1字节) + 原始长度(4字节) + 压缩后的数据
+ * 魔数0xFD和json（ASCII字符开头）、二进制编码器（0xFE开头）都不会混淆，没有压缩的数据原样存储，读取时按魔数判断
+ * 用deflate的最快档位，缓存读多写少，解压的开销远小于反序列化
+ */
+
+public class CacheCompressor {
+
+    private static final byte MAGIC = (byte) 0xFD;
+    private static final byte DEFLATE = 1;
+    private static final int HEADER_LENGTH = 6;
+
+    // Deflater/Inflater创建时会分配本地内存，每个线程复用一个
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private CacheCompressor() {
+    }
+
+    /**
+     * 判断数据是否是压缩过的
+     */
+    public static boolean isCompressed(byte[] bytes) {
+        return bytes != null && bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC;
+    }
+
+    /**
+     * 压缩，压缩后加上头部反而不比原来小时返回原数据
+     * @param bytes 编码器的输出
+     * @return
+     */
+    public static byte[] compress(byte[] bytes) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + HEADER_LENGTH);
+        out.write(MAGIC);
+        out.write(DEFLATE);
+        out.write(ByteBuffer.allocate(4).putInt(bytes.length).array(), 0, 4);
+        byte[] buffer = new byte[Math.min(bytes.length, 8192)];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+            if (out.size() >= bytes.length) {
+                // 压缩不了，直接存原数据
+                return bytes;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 解压，没有压缩过的数据原样返回
+     * @param bytes redis中取出的原始数据
+     * @return 编码器的输出
+     */
+    public static byte[] decompress(byte[] bytes) {
+        if (!isCompressed(bytes)) {
+            return bytes;
+        }
+        if (bytes[1] != DEFLATE) {
+            throw new IllegalStateException("未知的压缩算法：" + bytes[1]);
+        }
+        int length = ByteBuffer.wrap(bytes, 2, 4).getInt();
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH);
+        byte[] result = new byte[length];
+        try {
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int read = inflater.inflate(result, n, length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != length) {
+                throw new IllegalStateException("压缩数据不完整");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("压缩数据损坏", e);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,206 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 缓存失效
+ * 在事务中删除缓存，事务提交之前别的线程可能读到旧数据并重新写回缓存，因此缓存的删除/刷新要放到事务提交之后
+ * 1. 同一个事务内的所有失效操作先攒起来，提交后一次性批量执行，事务回滚则什么都不做
+ * 2. 提交后再延迟一段时间执行第二次（延迟双删），覆盖掉在提交前后并发读到旧数据并写回缓存的情况
+ * 3. 逻辑过期的key不能删除（删除后查询直接返回空），而是重新查询数据库覆盖写入，并通知各节点删除本地缓存
+ * 4. 每次执行前先把这些key的版本号加1，更新之前就已经开始的缓存重建拿到的是旧版本号，写入时会被拒绝
+ * 不在事务中调用时立即执行
+ */
+
+@Slf4j
+@Component
+public class CacheInvalidator {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    // 执行延迟的第二次删除
+    private final ScheduledExecutorService delayExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cache-invalidate-delay");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * 删除缓存
+     * @param key
+     */
+    public void delete(String key) {
+        Batch batch = currentBatch();
+        batch.deleteKeys.add(key);
+        if (batch.immediate) {
+            flush(batch);
+        }
+    }
+
+    /**
+     * 刷新逻辑过期的缓存：重新查询数据库并覆盖写入，数据库中已不存在则删除
+     * @param key
+     * @param loader 查询数据库的逻辑，事务提交后执行
+     * @param time 逻辑过期时间
+     * @param unit
+     */
+    public void refresh(String key, Supplier<?> loader, Long time, TimeUnit unit) {
+        Batch batch = currentBatch();
+        batch.refreshes.put(key, new Refresh(loader, time, unit));
+        if (batch.immediate) {
+            flush(batch);
+        }
+    }
+
+    /**
+     * 事务提交后执行一次，不参与延迟双删，用于计数器加减这类重复执行会出错的字段级更新
+     * 不在事务中调用时立即执行；执行失败只记录日志，缓存中的值随TTL过期后重新回填
+     * @param task
+     */
+    public void runAfterCommit(Runnable task) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            runQuietly(task);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                runQuietly(task);
+            }
+        });
+    }
+
+    private void runQuietly(Runnable task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            log.error("事务提交后更新缓存失败", e);
+        }
+    }
+
+    /**
+     * 取得当前事务的批次，第一次调用时注册事务同步回调；不在事务中时返回一个立即执行的批次
+     */
+    private Batch currentBatch() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return new Batch(true);
+        }
+        Batch batch = (Batch) TransactionSynchronizationManager.getResource(this);
+        if (batch != null) {
+            return batch;
+        }
+        Batch newBatch = new Batch(false);
+        TransactionSynchronizationManager.bindResource(this, newBatch);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                CacheInvalidator.this.flush(newBatch);
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(CacheInvalidator.this);
+            }
+        });
+        return newBatch;
+    }
+
+    /**
+     * 立即执行一次，并安排延迟的第二次
+     */
+    private void flush(Batch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            execute(batch);
+        } catch (Exception e) {
+            // 事务已经提交，这里抛出去只会让调用方误以为失败，记录日志后交给第二次删除补偿
+            log.error("事务提交后删除缓存失败，keys = {}", batch.keys(), e);
+        }
+        delayExecutor.schedule(() -> {
+            try {
+                execute(batch);
+            } catch (Exception e) {
+                log.error("延迟删除缓存失败，keys = {}", batch.keys(), e);
+            }
+        }, SystemConstants.CACHE_DOUBLE_DELETE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private void execute(Batch batch) {
+        // 1. 所有key的版本号加1
+        cacheClient.bumpVersion(batch.keys());
+        // 2. 需要删除的key一次DEL删除
+        cacheClient.delete(batch.deleteKeys);
+        // 3. 逻辑过期的key重新查询数据库后带版本号覆盖写入，数据库中已不存在的会被删除
+        List<String> refreshedKeys = new ArrayList<>();
+        batch.refreshes.forEach((key, refresh) -> {
+            cacheClient.refreshLogicalExpire(key, refresh.loader, refresh.time, refresh.unit);
+            refreshedKeys.add(key);
+        });
+        // 4. 通知其它节点删除被刷新的key的本地缓存
+        if (!refreshedKeys.isEmpty()) {
+            cacheClient.broadcastEvict(refreshedKeys);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        delayExecutor.shutdown();
+    }
+
+
+    /**
+     * 一个事务内攒下的失效操作
+     */
+    private static class Batch {
+        // 不在事务中，加入后立即执行
+        private final boolean immediate;
+        private final Set<String> deleteKeys = new LinkedHashSet<>();
+        private final Map<String, Refresh> refreshes = new LinkedHashMap<>();
+
+        Batch(boolean immediate) {
+            this.immediate = immediate;
+        }
+
+        boolean isEmpty() {
+            return deleteKeys.isEmpty() && refreshes.isEmpty();
+        }
+
+        Set<String> keys() {
+            Set<String> keys = new LinkedHashSet<>(deleteKeys);
+            keys.addAll(refreshes.keySet());
+            return keys;
+        }
+    }
+
+
+    private static class Refresh {
+        private final Supplier<?> loader;
+        private final Long time;
+        private final TimeUnit unit;
+
+        Refresh(Supplier<?> loader, Long time, TimeUnit unit) {
+            this.loader = loader;
+            this.time = time;
+            this.unit = unit;
+        }
+    }
+}
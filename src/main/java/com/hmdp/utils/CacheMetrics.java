@@ -0,0 +1,248 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.CacheStats;
+import com.hmdp.dto.HotKey;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * 缓存指标统计
+ * 1. 按key前缀统计本地命中、redis命中、空值命中、未命中、返回旧数据、抢锁失败、布隆过滤器拦截的次数，以及查询数据库的耗时分布
+ *    大value的压缩率和压缩、解压的耗时也按key前缀统计
+ * 2. 采样统计热点key：每HOT_KEY_SAMPLE_RATE次访问只记录1次，未被采样的访问只多一次随机数，不产生任何对象
+ *    计数定期减半，长时间没人访问的key会被清掉，因此统计的是最近一段时间的热点
+ * 计数器都用LongAdder，高并发下多个线程累加不会互相竞争
+ */
+
+@Component
+public class CacheMetrics {
+
+    // 耗时分布的桶的上界（毫秒），最后一个桶是大于最大上界的
+    private static final long[] LATENCY_BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+    // key前缀 -> 该前缀的指标
+    private final Map<String, PrefixMetrics> metrics = new ConcurrentHashMap<>();
+
+    // 采样到的key -> 估算的访问次数
+    private final Map<String, AtomicLong> hotKeys = new ConcurrentHashMap<>();
+
+    /**
+     * 获取某个key前缀的指标，不存在则创建
+     */
+    public PrefixMetrics of(String keyPrefix) {
+        PrefixMetrics m = metrics.get(keyPrefix);
+        // 先get再computeIfAbsent，已存在时不会加锁
+        return m != null ? m : metrics.computeIfAbsent(keyPrefix, p -> new PrefixMetrics());
+    }
+
+    /**
+     * 已经有指标的key前缀
+     */
+    public Set<String> prefixes() {
+        return metrics.keySet();
+    }
+
+    /**
+     * 记录一次key的访问，按采样率采样
+     */
+    public void recordAccess(String key) {
+        if (ThreadLocalRandom.current().nextInt(SystemConstants.HOT_KEY_SAMPLE_RATE) != 0) {
+            return;
+        }
+        AtomicLong count = hotKeys.get(key);
+        if (count == null) {
+            // 超出容量后不再记录新的key，等下一次衰减把冷key清掉
+            if (hotKeys.size() >= SystemConstants.HOT_KEY_CAPACITY) {
+                return;
+            }
+            count = hotKeys.computeIfAbsent(key, k -> new AtomicLong());
+        }
+        count.addAndGet(SystemConstants.HOT_KEY_SAMPLE_RATE);
+    }
+
+    /**
+     * 访问次数最多的前n个key
+     */
+    public List<HotKey> topKeys(int n) {
+        return hotKeys.entrySet().stream()
+                .map(e -> new HotKey(e.getKey(), e.getValue().get()))
+                .sorted((a, b) -> Long.compare(b.getCount(), a.getCount()))
+                .limit(n)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 热点key计数定期减半，减到0的key删除
+     */
+    @Scheduled(fixedRate = SystemConstants.HOT_KEY_DECAY_INTERVAL)
+    public void decayHotKeys() {
+        hotKeys.entrySet().removeIf(e -> e.getValue().updateAndGet(c -> c / 2) == 0);
+    }
+
+    /**
+     * 所有key前缀的指标快照
+     */
+    public Map<String, CacheStats> snapshot() {
+        Map<String, CacheStats> result = new TreeMap<>();
+        metrics.forEach((prefix, m) -> result.put(prefix, m.snapshot()));
+        return result;
+    }
+
+
+    /**
+     * 某个key前缀的指标
+     */
+    public static class PrefixMetrics {
+        private final LongAdder localHits = new LongAdder();
+        private final LongAdder redisHits = new LongAdder();
+        private final LongAdder nullHits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder staleServes = new LongAdder();
+        private final LongAdder lockContention = new LongAdder();
+        private final LongAdder bloomRejects = new LongAdder();
+        private final LongAdder loadFailures = new LongAdder();
+        private final LongAdder loadTotalTime = new LongAdder();
+        private final LongAdder[] loadLatency = new LongAdder[LATENCY_BUCKETS.length + 1];
+        private final LongAdder compressions = new LongAdder();
+        private final LongAdder compressInputBytes = new LongAdder();
+        private final LongAdder compressOutputBytes = new LongAdder();
+        private final LongAdder compressNanos = new LongAdder();
+        private final LongAdder decompressions = new LongAdder();
+        private final LongAdder decompressNanos = new LongAdder();
+
+        PrefixMetrics() {
+            for (int i = 0; i < loadLatency.length; i++) {
+                loadLatency[i] = new LongAdder();
+            }
+        }
+
+        public void localHit() {
+            localHits.increment();
+        }
+
+        public void redisHit() {
+            redisHits.increment();
+        }
+
+        public void nullHit() {
+            nullHits.increment();
+        }
+
+        public void miss() {
+            misses.increment();
+        }
+
+        public void staleServe() {
+            staleServes.increment();
+        }
+
+        public void lockContention() {
+            lockContention.increment();
+        }
+
+        public void bloomReject() {
+            bloomRejects.increment();
+        }
+
+        /**
+         * 记录一次查询数据库
+         * @param millis 耗时（毫秒）
+         * @param success 是否成功
+         */
+        public void recordLoad(long millis, boolean success) {
+            if (!success) {
+                loadFailures.increment();
+            }
+            loadTotalTime.add(millis);
+            int i = 0;
+            while (i < LATENCY_BUCKETS.length && millis > LATENCY_BUCKETS[i]) {
+                i++;
+            }
+            loadLatency[i].increment();
+        }
+
+        /**
+         * 记录一次压缩
+         * @param inputBytes 压缩前的字节数
+         * @param outputBytes 压缩后的字节数，压缩不了时和压缩前相同
+         * @param nanos 耗时（纳秒）
+         */
+        public void recordCompress(int inputBytes, int outputBytes, long nanos) {
+            compressions.increment();
+            compressInputBytes.add(inputBytes);
+            compressOutputBytes.add(outputBytes);
+            compressNanos.add(nanos);
+        }
+
+        /**
+         * 记录一次解压
+         * @param nanos 耗时（纳秒）
+         */
+        public void recordDecompress(long nanos) {
+            decompressions.increment();
+            decompressNanos.add(nanos);
+        }
+
+        CacheStats snapshot() {
+            long[] counts = new long[loadLatency.length];
+            long loads = 0;
+            Map<String, Long> histogram = new LinkedHashMap<>();
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = loadLatency[i].sum();
+                loads += counts[i];
+                histogram.put(i < LATENCY_BUCKETS.length ? "<=" + LATENCY_BUCKETS[i] + "ms" : ">" + LATENCY_BUCKETS[i - 1] + "ms", counts[i]);
+            }
+            long hits = localHits.sum() + redisHits.sum() + nullHits.sum();
+            long total = hits + misses.sum();
+            return CacheStats.builder()
+                    .localHits(localHits.sum())
+                    .redisHits(redisHits.sum())
+                    .nullHits(nullHits.sum())
+                    .misses(misses.sum())
+                    .hitRate(total == 0 ? 0 : (double) hits / total)
+                    .staleServes(staleServes.sum())
+                    .lockContention(lockContention.sum())
+                    .bloomRejects(bloomRejects.sum())
+                    .loads(loads)
+                    .loadFailures(loadFailures.sum())
+                    .loadAvgMillis(loads == 0 ? 0 : loadTotalTime.sum() / loads)
+                    .loadP99Millis(percentile(counts, loads, 0.99))
+                    .loadLatency(histogram)
+                    .compressions(compressions.sum())
+                    .compressionRatio(compressInputBytes.sum() == 0 ? 1 : (double) compressOutputBytes.sum() / compressInputBytes.sum())
+                    .compressAvgMicros(compressions.sum() == 0 ? 0 : compressNanos.sum() / compressions.sum() / 1000)
+                    .decompressions(decompressions.sum())
+                    .decompressAvgMicros(decompressions.sum() == 0 ? 0 : decompressNanos.sum() / decompressions.sum() / 1000)
+                    .build();
+        }
+
+        /**
+         * 根据耗时分布估算分位数，返回所在桶的上界，落在最后一个桶时返回-1
+         */
+        private static long percentile(long[] counts, long total, double p) {
+            if (total == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(total * p);
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                if (cumulative >= threshold) {
+                    return i < LATENCY_BUCKETS.length ? LATENCY_BUCKETS[i] : -1;
+                }
+            }
+            return -1;
+        }
+    }
+}
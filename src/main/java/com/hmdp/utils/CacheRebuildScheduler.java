@@ -0,0 +1,182 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.RebuildStats;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 全局共享的缓存重建调度器，所有异步重建缓存的任务都提交到这里
+ * 1. 同一个key同时只有一个重建任务，重复提交直接丢弃
+ * 2. 队列有界，队列满了直接丢弃任务（调用方返回旧数据），防止大量key同时过期时堆积成千上万个任务把数据库连接池耗尽
+ * 3. 并发数根据重建耗时自适应（AIMD）：耗时正常时每成功一批并发+1，耗时超过阈值时并发减半
+ * 4. 统计队列长度、重建耗时、失败次数等指标
+ */
+
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+
+    private final int minConcurrency;
+    private final int maxConcurrency;
+    private final long latencyThreshold;
+
+    private final ThreadPoolExecutor executor;
+    // 正在排队或执行的key
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    // 当前并发上限
+    private final AtomicInteger limit;
+    // 上次调整并发上限之后成功的次数，攒够一批再+1
+    private final AtomicInteger successSinceIncrease = new AtomicInteger();
+    // 上次减半的时间，一个冷却期内只减一次，避免同一批慢任务把并发一路减到最小
+    private final AtomicLong lastDecrease = new AtomicLong();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalLatency = new LongAdder();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    public CacheRebuildScheduler() {
+        this(SystemConstants.REBUILD_MIN_CONCURRENCY, SystemConstants.REBUILD_MAX_CONCURRENCY,
+                SystemConstants.REBUILD_QUEUE_CAPACITY, SystemConstants.REBUILD_LATENCY_THRESHOLD);
+    }
+
+    /**
+     * @param minConcurrency 最小并发数
+     * @param maxConcurrency 最大并发数
+     * @param queueCapacity 等待队列长度
+     * @param latencyThreshold 重建耗时阈值（毫秒），超过则认为数据库压力过大
+     */
+    public CacheRebuildScheduler(int minConcurrency, int maxConcurrency, int queueCapacity, long latencyThreshold) {
+        this.minConcurrency = minConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.latencyThreshold = latencyThreshold;
+        this.limit = new AtomicInteger(minConcurrency);
+        AtomicInteger threadIndex = new AtomicInteger();
+        // 队列有界，core = max，线程数就是并发上限，通过setCorePoolSize动态调整
+        this.executor = new ThreadPoolExecutor(minConcurrency, minConcurrency,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread t = new Thread(r, "cache-rebuild-" + threadIndex.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 提交重建任务
+     * @param key 缓存的key，用于去重
+     * @param task 重建逻辑，异常会被记录并计入失败次数
+     * @return 是否提交成功，重复提交或队列已满返回false，调用方需要自己释放已经拿到的锁
+     */
+    public boolean submit(String key, Runnable task) {
+        if (!inFlight.add(key)) {
+            deduplicated.increment();
+            return false;
+        }
+        try {
+            executor.execute(() -> run(key, task));
+            submitted.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key);
+            rejected.increment();
+            log.warn("缓存重建队列已满，丢弃重建任务，key = {}", key);
+            return false;
+        }
+    }
+
+    private void run(String key, Runnable task) {
+        long begin = System.currentTimeMillis();
+        try {
+            task.run();
+            long cost = System.currentTimeMillis() - begin;
+            succeeded.increment();
+            recordLatency(cost);
+            adjust(cost);
+        } catch (Exception e) {
+            failed.increment();
+            recordLatency(System.currentTimeMillis() - begin);
+            // 失败大多是数据库扛不住了，按慢请求处理
+            adjust(Long.MAX_VALUE);
+            log.error("缓存重建失败，key = {}", key, e);
+        } finally {
+            inFlight.remove(key);
+        }
+    }
+
+    private void recordLatency(long cost) {
+        totalLatency.add(cost);
+        maxLatency.accumulateAndGet(cost, Math::max);
+    }
+
+    /**
+     * AIMD调整并发上限
+     */
+    private void adjust(long cost) {
+        if (cost > latencyThreshold) {
+            long now = System.currentTimeMillis();
+            long last = lastDecrease.get();
+            if (now - last < latencyThreshold || !lastDecrease.compareAndSet(last, now)) {
+                return;
+            }
+            successSinceIncrease.set(0);
+            resize(limit.updateAndGet(l -> Math.max(minConcurrency, l / 2)));
+            return;
+        }
+        int current = limit.get();
+        if (current < maxConcurrency && successSinceIncrease.incrementAndGet() >= current) {
+            successSinceIncrease.set(0);
+            resize(limit.updateAndGet(l -> Math.min(maxConcurrency, l + 1)));
+        }
+    }
+
+    private synchronized void resize(int size) {
+        // 扩容先调max再调core，缩容反过来，否则会抛IllegalArgumentException
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    public RebuildStats getStats() {
+        long done = succeeded.sum() + failed.sum();
+        return RebuildStats.builder()
+                .queueSize(executor.getQueue().size())
+                .active(executor.getActiveCount())
+                .concurrencyLimit(limit.get())
+                .submitted(submitted.sum())
+                .deduplicated(deduplicated.sum())
+                .rejected(rejected.sum())
+                .succeeded(succeeded.sum())
+                .failed(failed.sum())
+                .avgLatency(done == 0 ? 0 : totalLatency.sum() / done)
+                .maxLatency(maxLatency.get())
+                .build();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,219 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.HotKey;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 本地缓存快照，用于快速热重启
+ * 定期把本地缓存中最热的条目写到本地文件，重启时在对外提供服务之前直接加载到本地缓存，不用等redis和数据库慢慢回填
+ * 加载的条目不会立即和redis核对，第一次被读取时才批量核对，不一致则删除，因此重启时不会对redis造成压力
+ * 文件用内存映射读写，写入时先写临时文件再原子替换，进程在写入过程中被杀掉也不会留下损坏的快照
+ *
+ * 文件格式：magic(4) 版本(4) 写入时间(8) 条目数(4)，之后每个条目为：
+ * key长度(4) key 类型名长度(4) 类型名 是否逻辑过期(1) 数据长度(4) 数据（和写入redis时的格式一致）
+ */
+
+@Slf4j
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)  // 在缓存预热等其它ApplicationRunner之前加载
+public class CacheSnapshot implements ApplicationRunner {
+
+    private static final int MAGIC = 0x484D5350;    // "HMSP"
+    private static final int VERSION = 1;
+    private static final String ENTITY_PACKAGE = "com.hmdp.";
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Value("${hmdp.cache.snapshot.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.cache.snapshot.path:cache-snapshot.bin}")
+    private String path;
+
+    // 本次启动加载快照的时间，超过本地缓存TTL之后没被读取过的条目也就不用核对了
+    private volatile long loadedAt;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            load();
+        } catch (Exception e) {
+            // 快照只是优化，加载失败不影响启动
+            log.warn("加载本地缓存快照失败，path = {}", path, e);
+        }
+    }
+
+    /**
+     * 定期写入快照
+     */
+    @Scheduled(initialDelay = SystemConstants.SNAPSHOT_INTERVAL, fixedDelay = SystemConstants.SNAPSHOT_INTERVAL)
+    public void scheduledSave() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            save();
+        } catch (Exception e) {
+            log.warn("写入本地缓存快照失败，path = {}", path, e);
+        }
+    }
+
+    /**
+     * 停机前再写一次，保证快照是最新的
+     */
+    @PreDestroy
+    public void saveOnShutdown() {
+        scheduledSave();
+    }
+
+    /**
+     * 批量核对已经被读取过的快照条目
+     */
+    @Scheduled(fixedDelay = SystemConstants.SNAPSHOT_VALIDATE_INTERVAL)
+    public void validate() {
+        if (loadedAt == 0) {
+            return;
+        }
+        cacheClient.validateSnapshot();
+        if (System.currentTimeMillis() - loadedAt > SystemConstants.LOCAL_CACHE_TTL) {
+            cacheClient.clearUnverified();
+        }
+    }
+
+    /**
+     * 把本地缓存中最热的条目写入快照文件
+     * @return 写入的条目个数
+     */
+    public int save() throws IOException {
+        // 1. 热点key的副本和访问次数最多的key
+        Set<String> keys = new LinkedHashSet<>(cacheClient.getPinnedKeys());
+        for (HotKey hotKey : cacheMetrics.topKeys(SystemConstants.SNAPSHOT_MAX_ENTRIES)) {
+            if (keys.size() >= SystemConstants.SNAPSHOT_MAX_ENTRIES) {
+                break;
+            }
+            keys.add(hotKey.getKey());
+        }
+        Map<String, RedisData> entries = cacheClient.exportLocal(keys);
+        if (entries.isEmpty()) {
+            return 0;
+        }
+
+        // 2. 编码，先算出文件的总长度
+        List<byte[][]> encoded = new ArrayList<>(entries.size());
+        long size = 4 + 4 + 8 + 4;
+        for (Map.Entry<String, RedisData> entry : entries.entrySet()) {
+            RedisData redisData = entry.getValue();
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] type = redisData.getData() == null ? new byte[0]
+                    : redisData.getData().getClass().getName().getBytes(StandardCharsets.UTF_8);
+            byte[] logical = {(byte) (redisData.getExpireTime() == null ? 0 : 1)};
+            byte[] data = cacheClient.encodeLocal(entry.getKey(), redisData);
+            encoded.add(new byte[][]{key, type, logical, data});
+            size += 4 + key.length + 4 + type.length + 1 + 4 + data.length;
+        }
+
+        // 3. 写入临时文件后原子替换
+        Path target = Paths.get(path).toAbsolutePath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putInt(encoded.size());
+            for (byte[][] entry : encoded) {
+                buffer.putInt(entry[0].length).put(entry[0]);
+                buffer.putInt(entry[1].length).put(entry[1]);
+                buffer.put(entry[2][0]);
+                buffer.putInt(entry[3].length).put(entry[3]);
+            }
+            buffer.force();
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.debug("写入本地缓存快照，条目数 = {}，大小 = {} 字节", encoded.size(), size);
+        return encoded.size();
+    }
+
+    /**
+     * 加载快照文件到本地缓存
+     * @return 加载的条目个数
+     */
+    public int load() throws IOException {
+        Path target = Paths.get(path).toAbsolutePath();
+        if (!Files.exists(target)) {
+            return 0;
+        }
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 20 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                log.warn("本地缓存快照格式不正确，忽略，path = {}", target);
+                return 0;
+            }
+            long savedAt = buffer.getLong();
+            if (System.currentTimeMillis() - savedAt > SystemConstants.SNAPSHOT_MAX_AGE) {
+                log.info("本地缓存快照已过旧，忽略，path = {}", target);
+                return 0;
+            }
+            int total = buffer.getInt();
+            for (int i = 0; i < total; i++) {
+                String key = readString(buffer);
+                String typeName = readString(buffer);
+                boolean logicalExpire = buffer.get() == 1;
+                byte[] data = new byte[buffer.getInt()];
+                buffer.get(data);
+                // 只加载本项目的实体类，不按文件内容加载任意的类
+                if (!typeName.isEmpty() && !typeName.startsWith(ENTITY_PACKAGE)) {
+                    continue;
+                }
+                try {
+                    Class<?> type = typeName.isEmpty() ? null : Class.forName(typeName);
+                    cacheClient.importLocal(key, type, data, logicalExpire);
+                    count++;
+                } catch (Exception e) {
+                    // 类被改名或数据格式不兼容，跳过这一条
+                    log.debug("跳过无法加载的快照条目，key = {}", key, e);
+                }
+            }
+        }
+        loadedAt = System.currentTimeMillis();
+        log.info("加载本地缓存快照，条目数 = {}", count);
+        return count;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
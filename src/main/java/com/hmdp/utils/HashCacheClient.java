@@ -0,0 +1,236 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 以hash结构缓存对象，每个字段单独存储
+ * 1. 计数器（比如销量、评论数）变化时用HINCRBY只改这一个字段，不用删除后整体重建
+ * 2. 其它字段变化时用HSET只写变化的字段
+ * 3. 列表页只需要部分字段，用HMGET只读这些字段，多个key用管道一次读出
+ * 字段级更新只在hash已经存在时执行，不存在时什么都不做，等下一次读取时从数据库整体回填
+ * 字段级更新都会把版本号加1，回填时带上查询数据库之前读到的版本号，版本号变了或hash已经存在都不写入
+ */
+
+@Slf4j
+@Component
+public class HashCacheClient {
+
+    private static final DefaultRedisScript<Long> HASH_UPDATE_SCRIPT;
+    private static final DefaultRedisScript<Long> HASH_SET_IF_NEWER_SCRIPT;
+
+    static {
+        HASH_UPDATE_SCRIPT = new DefaultRedisScript<>();
+        HASH_UPDATE_SCRIPT.setLocation(new ClassPathResource("cache_hash_update.lua"));
+        HASH_UPDATE_SCRIPT.setResultType(Long.class);
+        HASH_SET_IF_NEWER_SCRIPT = new DefaultRedisScript<>();
+        HASH_SET_IF_NEWER_SCRIPT.setLocation(new ClassPathResource("cache_hash_set_if_newer.lua"));
+        HASH_SET_IF_NEWER_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private TtlPolicyRegistry ttlPolicyRegistry;
+
+    @Resource
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+
+    /**
+     * 批量读取版本号，必须在查询数据库之前调用，多个GET用管道一次发出去
+     * @param keys
+     * @return key -> 版本号，从来没有更新过的为0；redis不可用时全部为0
+     */
+    public Map<String, Long> readVersions(List<String> keys) {
+        if (keys.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        List<Object> results = redisCircuitBreaker.execute(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.get(CacheClient.versionKey(key));
+            }
+            return null;
+        }), () -> null);
+        Map<String, Long> versions = new HashMap<>(keys.size() * 2);
+        for (int i = 0; i < keys.size(); i++) {
+            Object version = results == null ? null : results.get(i);
+            versions.put(keys.get(i), version == null ? 0L : Long.parseLong(version.toString()));
+        }
+        return versions;
+    }
+
+
+    /**
+     * 批量整体回填，多个key用管道一次写入，每个key按过期时间策略设置TTL
+     * 只在hash不存在、并且查询数据库之后没有字段级更新时写入，不会用旧数据覆盖更新后的hash
+     * @param values key -> 要存储的Java对象，值为null的字段不写入
+     * @param versions key -> 查询数据库之前用readVersions读到的版本号
+     * @param time
+     * @param unit
+     */
+    public void setBatch(Map<String, ?> values, Map<String, Long> versions, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        String sha1 = HASH_SET_IF_NEWER_SCRIPT.getSha1();
+        byte[] script = HASH_SET_IF_NEWER_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        // redis不可用时不回填，下一次读取时再从数据库查
+        redisCircuitBreaker.run(() -> {
+            // 管道中不能处理NOSCRIPT，先确保脚本已经加载
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.scriptLoad(script));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                values.forEach((key, value) -> {
+                    Map<byte[], byte[]> hash = toHash(value);
+                    byte[][] keysAndArgs = new byte[4 + hash.size() * 2][];
+                    keysAndArgs[0] = key.getBytes(StandardCharsets.UTF_8);
+                    keysAndArgs[1] = CacheClient.versionKey(key);
+                    keysAndArgs[2] = String.valueOf(versions.getOrDefault(key, 0L)).getBytes(StandardCharsets.UTF_8);
+                    keysAndArgs[3] = String.valueOf(ttlPolicyRegistry.ttlMillis(key, time, unit)).getBytes(StandardCharsets.UTF_8);
+                    int i = 4;
+                    for (Map.Entry<byte[], byte[]> field : hash.entrySet()) {
+                        keysAndArgs[i++] = field.getKey();
+                        keysAndArgs[i++] = field.getValue();
+                    }
+                    connection.evalSha(sha1, ReturnType.INTEGER, 2, keysAndArgs);
+                });
+                return null;
+            });
+        }, () -> {
+        });
+    }
+
+
+    /**
+     * 批量读取部分字段，多个HMGET用管道一次发出去
+     * @param keys
+     * @param type 目标类型，没有读取的字段为null
+     * @param fields 要读取的字段
+     * @return 和keys一一对应、顺序一致的结果，没有缓存的key对应的位置为null
+     * @param <R>
+     */
+    public <R> List<R> multiGet(List<String> keys, Class<R> type, String... fields) {
+        if (keys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        byte[][] rawFields = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            rawFields[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+        }
+        // redis不可用时全部当作没有缓存
+        List<Object> results = redisCircuitBreaker.execute(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.hMGet(key.getBytes(StandardCharsets.UTF_8), rawFields);
+            }
+            return null;
+        }), () -> null);
+
+        List<R> list = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            List<?> values = results == null ? null : (List<?>) results.get(i);
+            list.add(values == null ? null : toBean(values, type, fields));
+        }
+        return list;
+    }
+
+
+    /**
+     * 计数器加减，只改这一个字段
+     * @param key
+     * @param field
+     * @param delta
+     * @return 加减后的值；hash不存在（没有缓存）或redis不可用时返回null
+     */
+    public Long increment(String key, String field, long delta) {
+        return redisCircuitBreaker.execute(() -> stringRedisTemplate.execute(HASH_UPDATE_SCRIPT,
+                keys(key), versionTtl(), "incr", field, String.valueOf(delta)), () -> {
+            log.warn("redis不可用，计数器没有更新，key = {}，field = {}", key, field);
+            return null;
+        });
+    }
+
+
+    /**
+     * 只写对象中不为null的字段
+     * @param key
+     * @param value
+     * @return 是否写入，hash不存在（没有缓存）或redis不可用时返回false
+     */
+    public boolean updateFields(String key, Object value) {
+        Map<String, Object> map = BeanUtil.beanToMap(value, new LinkedHashMap<>(), CopyOptions.create().setIgnoreNullValue(true));
+        if (map.isEmpty()) {
+            return false;
+        }
+        List<String> args = new ArrayList<>(map.size() * 2 + 2);
+        args.add(versionTtl());
+        args.add("set");
+        map.forEach((field, fieldValue) -> {
+            args.add(field);
+            args.add(fieldValue.toString());
+        });
+        Long result = redisCircuitBreaker.execute(() -> stringRedisTemplate.execute(HASH_UPDATE_SCRIPT,
+                keys(key), args.toArray()), () -> {
+            log.warn("redis不可用，字段没有更新，key = {}", key);
+            return null;
+        });
+        return result != null;
+    }
+
+
+    /**
+     * hash的key和它的版本号key
+     */
+    private static List<String> keys(String key) {
+        return Arrays.asList(key, new String(CacheClient.versionKey(key), StandardCharsets.UTF_8));
+    }
+
+
+    private static String versionTtl() {
+        return String.valueOf(TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_VERSION_TTL));
+    }
+
+
+    /**
+     * 对象转为hash，值为null的字段跳过，其余转为字符串
+     */
+    private static Map<byte[], byte[]> toHash(Object value) {
+        Map<String, Object> map = BeanUtil.beanToMap(value, new HashMap<>(), CopyOptions.create().setIgnoreNullValue(true));
+        Map<byte[], byte[]> hash = new HashMap<>(map.size() * 2);
+        map.forEach((field, fieldValue) -> hash.put(field.getBytes(StandardCharsets.UTF_8),
+                fieldValue.toString().getBytes(StandardCharsets.UTF_8)));
+        return hash;
+    }
+
+
+    /**
+     * HMGET的结果转为对象，所有字段都为null说明hash不存在
+     */
+    private static <R> R toBean(List<?> values, Class<R> type, String[] fields) {
+        Map<String, Object> map = new HashMap<>(fields.length * 2);
+        for (int i = 0; i < fields.length; i++) {
+            if (values.get(i) != null) {
+                map.put(fields[i], values.get(i));
+            }
+        }
+        return map.isEmpty() ? null : BeanUtil.toBean(map, type);
+    }
+}
@@ -0,0 +1,129 @@
+package com.hmdp.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 热点key探测，基于滑动窗口的Count-Min Sketch
+ * 窗口分成若干个槽，每个槽是一个depth * width的计数矩阵，访问时只累加当前槽，估算时把所有槽相加后取depth行中的最小值
+ * 每过一个槽的时间轮转一次，清空最老的槽，因此统计的始终是最近一个窗口内的访问次数
+ * Count-Min Sketch只会高估不会低估，内存固定，不随key的个数增长；记录一次访问只有depth次原子累加，不产生任何对象
+ */
+
+public class HotKeyDetector {
+
+    private static final int DEPTH = 4;
+
+    private final int width;
+    private final int mask;
+    private final long threshold;
+    private final long windowMillis;
+
+    private final AtomicLongArray[] slots;
+    private volatile int current = 0;
+
+    // 其它节点通知的热点key -> 有效期截止时间，本节点在有效期内直接认为它是热点
+    private final Map<String, Long> forced = new ConcurrentHashMap<>();
+
+    /**
+     * @param slotCount 窗口的槽数
+     * @param slotMillis 每个槽的时长（毫秒）
+     * @param width 每行的计数器个数，会向上取整到2的幂
+     * @param threshold 一个窗口内访问次数达到多少算热点
+     */
+    public HotKeyDetector(int slotCount, long slotMillis, int width, long threshold) {
+        this.width = Integer.highestOneBit(Math.max(1, width - 1)) << 1;
+        this.mask = this.width - 1;
+        this.threshold = threshold;
+        this.windowMillis = slotCount * slotMillis;
+        this.slots = new AtomicLongArray[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new AtomicLongArray(DEPTH * this.width);
+        }
+    }
+
+    /**
+     * 记录一次访问
+     * @return 访问后该key是否是热点
+     */
+    public boolean record(String key) {
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1 ^ 0x9E3779B9);
+        AtomicLongArray slot = slots[current];
+        for (int d = 0; d < DEPTH; d++) {
+            slot.incrementAndGet(d * width + ((h1 + d * h2) & mask));
+        }
+        return estimate(h1, h2) >= threshold || isForced(key);
+    }
+
+    /**
+     * 是否是热点，只查询不计数
+     */
+    public boolean isHot(String key) {
+        int h1 = spread(key.hashCode());
+        return estimate(h1, spread(h1 ^ 0x9E3779B9)) >= threshold || isForced(key);
+    }
+
+    /**
+     * 是否已经冷却，估算的访问次数低于阈值的一半才算冷却，避免在阈值附近反复提升、降级
+     */
+    public boolean isCold(String key) {
+        int h1 = spread(key.hashCode());
+        return estimate(h1, spread(h1 ^ 0x9E3779B9)) < threshold / 2 && !isForced(key);
+    }
+
+    /**
+     * 标记为热点，收到其它节点的热点通知时调用，一个窗口之后失效
+     */
+    public void markHot(String key) {
+        forced.put(key, System.currentTimeMillis() + windowMillis);
+    }
+
+    /**
+     * 窗口前进一个槽：清空最老的槽并把它作为当前槽
+     */
+    public void rotate() {
+        int next = (current + 1) % slots.length;
+        AtomicLongArray slot = slots[next];
+        for (int i = 0; i < slot.length(); i++) {
+            slot.set(i, 0);
+        }
+        current = next;
+        long now = System.currentTimeMillis();
+        forced.values().removeIf(until -> until < now);
+    }
+
+    private long estimate(int h1, int h2) {
+        long min = Long.MAX_VALUE;
+        for (int d = 0; d < DEPTH; d++) {
+            int index = d * width + ((h1 + d * h2) & mask);
+            long sum = 0;
+            for (AtomicLongArray slot : slots) {
+                sum += slot.get(index);
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    private boolean isForced(String key) {
+        if (forced.isEmpty()) {
+            return false;
+        }
+        Long until = forced.get(key);
+        return until != null && until >= System.currentTimeMillis();
+    }
+
+    /**
+     * 打散hashCode的低位，String.hashCode的低位分布不够均匀
+     */
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
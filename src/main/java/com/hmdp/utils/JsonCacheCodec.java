@@ -0,0 +1,68 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+/**
+ * json编码器，即原来的存储格式
+ * 没有逻辑过期的直接存对象的json，有逻辑过期的存RedisData的json
+ * 作为兜底的编码器，其它编码器都不认识的数据都按json解码
+ */
+
+@Component
+@Order(Ordered.LOWEST_PRECEDENCE)
+public class JsonCacheCodec implements CacheCodec {
+
+    public static final String NAME = "json";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public boolean canDecode(byte[] bytes) {
+        return true;
+    }
+
+    @Override
+    public byte[] encode(Object value, LocalDateTime expireTime, long rebuildCost) {
+        if (expireTime == null) {
+            return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(expireTime);
+        redisData.setRebuildCost(rebuildCost > 0 ? rebuildCost : null);    // 为null时不会写进json，和原来的格式一致
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public LocalDateTime readExpireTime(byte[] bytes) {
+        // json格式没法只读过期时间，只能整个解析
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class).getExpireTime();
+    }
+
+    @Override
+    public long readRebuildCost(byte[] bytes) {
+        Long rebuildCost = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class).getRebuildCost();
+        return rebuildCost == null ? 0 : rebuildCost;
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type, boolean logicalExpire) {
+        String json = new String(bytes, StandardCharsets.UTF_8);
+        if (!logicalExpire) {
+            return JSONUtil.toBean(json, type);
+        }
+        // 由于RedisData的data属性是Object类型，不知道该反序列化成什么，所以实际上结果是JSONObject类型，要再转一次
+        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+        return JSONUtil.toBean((JSONObject) redisData.getData(), type);
+    }
+}
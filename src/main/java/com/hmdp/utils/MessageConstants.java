@@ -7,7 +7,11 @@ public class MessageConstants {
     public static final String SECKILL_NOT_BEGIN = "秒杀尚未开始";
     public static final String SECKILL_HAVE_END = "秒杀已经结束";
     public static final String SECKILL_VOUCHER_STOCK_NOT_ENOUGH = "秒杀券库存不足";
+    public static final String SECKILL_VOUCHER_NOT_AVAILABLE = "秒杀券不存在或不在抢购时间内";
     public static final String DUPLICATE_ORDERS_NOT_ALLOWED = "不允许重复下单";
+    public static final String DEAD_LETTER_NOT_EXIST = "死信消息不存在";
+    public static final String VOUCHER_NOT_EXIST = "优惠券不存在";
+    public static final String SECKILL_STOCK_AMOUNT_INVALID = "补充的库存必须大于0";
     public static final String BLOG_NOT_EXIST = "笔记不存在";
     public static final String DATABASE_ERROR = "数据库访问错误";
 }
@@ -0,0 +1,206 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.OffHeapStats;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 堆外缓存，存放序列化后的字节，不占用堆内存，缓存再大也不会增加GC的压力
+ * 按字节数限制容量，分成若干个段，每个段是一块直接内存（DirectByteBuffer），段内按环形日志追加写入：
+ * 写到末尾后回到开头，覆盖最老的数据（FIFO淘汰），因此不会产生内存碎片，也不需要整理
+ * 每个段有自己的索引和锁，key按哈希分到不同的段，减少锁竞争
+ * 索引（key -> 偏移、长度、过期时间）在堆上，每个条目只有几十个字节，数据本身都在堆外
+ * 过期的条目在被覆盖之前一直保留，redis不可用时作为旧数据返回
+ */
+
+public class OffHeapCache {
+
+    private final Segment[] segments;
+    private final long capacity;
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity 总容量（字节）
+     * @param segmentCount 段数
+     */
+    public OffHeapCache(long capacity, int segmentCount) {
+        this.capacity = capacity;
+        this.segments = new Segment[segmentCount];
+        int segmentCapacity = (int) Math.min(Integer.MAX_VALUE, capacity / segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    /**
+     * 查询
+     * @return 不存在或已过期返回null
+     */
+    public byte[] get(String key) {
+        byte[] value = segmentOf(key).get(key, false);
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * 查询，已过期但还没有被覆盖的条目也返回，用于redis不可用时返回旧数据
+     * @return 不存在（从未写入、已被删除或已被覆盖）返回null
+     */
+    public byte[] getStale(String key) {
+        return segmentOf(key).get(key, true);
+    }
+
+    /**
+     * 写入，超过单个段容量的数据不缓存
+     * @param ttlMillis 有效期（毫秒）
+     */
+    public void put(String key, byte[] value, long ttlMillis) {
+        segmentOf(key).put(key, value, System.currentTimeMillis() + ttlMillis);
+    }
+
+    public void remove(String key) {
+        segmentOf(key).remove(key);
+    }
+
+    public OffHeapStats getStats() {
+        long entries = 0, used = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                entries += segment.index.size();
+                used += segment.used;
+            }
+        }
+        return OffHeapStats.builder()
+                .entries(entries)
+                .usedBytes(used)
+                .capacityBytes(capacity)
+                .evictions(evictions.sum())
+                .hits(hits.sum())
+                .misses(misses.sum())
+                .build();
+    }
+
+    private Segment segmentOf(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[Math.floorMod(h, segments.length)];
+    }
+
+
+    /**
+     * 索引条目
+     */
+    private static class Entry {
+        private final String key;
+        private final int offset;
+        private final int length;
+        private final long expireAt;
+
+        Entry(String key, int offset, int length, long expireAt) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+            this.expireAt = expireAt;
+        }
+    }
+
+
+    /**
+     * 一个段：一块直接内存 + 索引 + 按写入顺序排列的条目队列
+     */
+    private class Segment {
+        private final ByteBuffer buffer;
+        private final Map<String, Entry> index = new HashMap<>();
+        // 按写入顺序排列，队头是最老的，已经被删除/覆盖的条目也留在队列中，淘汰到它时跳过
+        private final ArrayDeque<Entry> log = new ArrayDeque<>();
+        private int writePos = 0;
+        private long used = 0;
+
+        Segment(int capacity) {
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+        }
+
+        synchronized byte[] get(String key, boolean allowStale) {
+            Entry entry = index.get(key);
+            if (entry == null) {
+                return null;
+            }
+            // 过期的条目不从索引中删除，数据区域被覆盖之前仍然可以作为旧数据返回
+            if (!allowStale && entry.expireAt <= System.currentTimeMillis()) {
+                return null;
+            }
+            byte[] value = new byte[entry.length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(entry.offset);
+            view.get(value);
+            return value;
+        }
+
+        synchronized void put(String key, byte[] value, long expireAt) {
+            int length = value.length;
+            // 空值也至少占1个字节，保证每个条目都有自己的区域，队列长度不会超过容量
+            int size = Math.max(1, length);
+            if (size > buffer.capacity()) {
+                remove(key);
+                return;
+            }
+            // 1. 末尾放不下，回到开头，上一圈留在末尾的条目全部淘汰
+            if (writePos + size > buffer.capacity()) {
+                int end = writePos;
+                while (!log.isEmpty() && log.peekFirst().offset >= end) {
+                    evict(log.pollFirst());
+                }
+                writePos = 0;
+            }
+            // 2. 淘汰和将要写入的区域重叠的最老的条目
+            int from = writePos, to = writePos + size;
+            while (!log.isEmpty() && log.peekFirst().offset < to && log.peekFirst().offset + Math.max(1, log.peekFirst().length) > from) {
+                evict(log.pollFirst());
+            }
+            // 3. 写入数据和索引
+            ByteBuffer view = buffer.duplicate();
+            view.position(writePos);
+            view.put(value);
+            Entry entry = new Entry(key, writePos, length, expireAt);
+            Entry old = index.put(key, entry);
+            if (old != null) {
+                used -= old.length;
+            }
+            used += length;
+            log.addLast(entry);
+            writePos += size;
+        }
+
+        synchronized void remove(String key) {
+            Entry entry = index.get(key);
+            if (entry != null) {
+                unindex(entry);
+            }
+        }
+
+        /**
+         * 数据区域被覆盖，如果索引中还指向它，则从索引中删除
+         */
+        private void evict(Entry entry) {
+            if (index.get(entry.key) == entry) {
+                unindex(entry);
+                evictions.increment();
+            }
+        }
+
+        private void unindex(Entry entry) {
+            index.remove(entry.key);
+            used -= entry.length;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 基于redis bitmap的布隆过滤器，用于解决缓存穿透问题
+ * redis中的bitmap是唯一的数据源，每个节点在本地保存一份镜像，查询只查本地镜像，不走网络
+ * 新增元素时同时写redis和本地镜像，并通过发布订阅通知其它节点更新它们的镜像
+ * 布隆过滤器判断不存在则一定不存在；判断存在则可能存在（有一定误判率）
+ */
+
+@Slf4j
+public class RedisBloomFilter {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String key;   // redis中bitmap的key
+    private final byte[] rawKey;
+    private final long numBits; // bit数组长度
+    private final int numHashes;    // 哈希函数个数
+
+    // 本地镜像，按redis bitmap的位序保存：第i位在第i/64个long中，从高位开始
+    private volatile AtomicLongArray bits;
+    // 本地镜像是否已经和redis同步过，没同步过之前一律认为可能存在，避免误拦截
+    private volatile boolean ready = false;
+    // 加载或重建期间新增的元素（本节点和其它节点的），切换本地镜像后要补上，否则会被旧的bitmap覆盖掉
+    private volatile Queue<Object> addedDuringSwap;
+    // 重建rename之后的这段时间内，收到的新增元素再写一次redis
+    // 其它节点的setbit可能落在rename之前的旧key上，而它的通知在重建补写之后才到
+    private volatile long replayRedisUntil = 0;
+
+    /**
+     * @param stringRedisTemplate
+     * @param key redis中bitmap的key
+     * @param expectedInsertions 预计元素个数
+     * @param fpp 期望的误判率
+     */
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, String key, long expectedInsertions, double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.key = key;
+        this.rawKey = key.getBytes(StandardCharsets.UTF_8);
+        // m = -n * ln(p) / (ln2)^2，向上取整到64的倍数，方便按long存储
+        long m = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.numBits = (m + 63) / 64 * 64;
+        // k = m / n * ln2
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        this.bits = new AtomicLongArray((int) (numBits / 64));
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * 发布订阅的频道，其它节点新增元素时会把元素发到这个频道
+     */
+    public String getChannel() {
+        return key + RedisConstants.BLOOM_ADD_CHANNEL_SUFFIX;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 判断元素是否可能存在，只查本地镜像
+     * @param id
+     * @return false代表一定不存在；true代表可能存在
+     */
+    public boolean mightContain(Object id) {
+        if (!ready) {
+            return true;
+        }
+        AtomicLongArray current = bits;
+        for (long offset : offsets(id)) {
+            if (!getBit(current, offset)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新增元素：写redis、写本地镜像，并通知其它节点
+     * 先写redis，同时进行的loadFromRedis要么读到这次的setbit，要么记录下这次新增，切换镜像后补上
+     * @param id
+     */
+    public void put(Object id) {
+        // 1. 写redis，多个setbit用管道一次发出去
+        setRedisBits(offsets(id));
+        // 2. 写本地镜像
+        putLocal(id);
+        // 3. 通知其它节点更新本地镜像
+        stringRedisTemplate.convertAndSend(getChannel(), id.toString());
+    }
+
+    /**
+     * 只写本地镜像，收到其它节点的新增通知时调用
+     * @param id
+     */
+    public void putLocal(Object id) {
+        long[] offsets = offsets(id);
+        // 1. 正在加载或重建，先记下来，切换镜像后补上
+        Queue<Object> added = addedDuringSwap;
+        if (added != null) {
+            added.add(id);
+        }
+        // 2. 写本地镜像，写的过程中镜像被切换了就在新镜像上再写一次
+        AtomicLongArray current;
+        do {
+            current = bits;
+            setBits(current, offsets);
+        } while (current != bits);
+        // 3. 刚重建完，这次新增的setbit可能落在了被rename覆盖的旧key上
+        if (System.currentTimeMillis() < replayRedisUntil) {
+            setRedisBits(offsets);
+        }
+    }
+
+    /**
+     * 从redis加载整个bitmap到本地镜像
+     * @return redis中不存在该bitmap时返回false
+     */
+    public synchronized boolean loadFromRedis() {
+        // 读取之前开始记录，读到的bitmap里可能没有读取期间新增的元素
+        addedDuringSwap = new ConcurrentLinkedQueue<>();
+        try {
+            byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+            if (bytes == null) {
+                return false;
+            }
+            AtomicLongArray loaded = fromBytes(bytes);
+            bits = loaded;
+            ready = true;
+            for (Object id : addedDuringSwap) {
+                setBits(loaded, offsets(id));
+            }
+            return true;
+        } finally {
+            addedDuringSwap = null;
+        }
+    }
+
+    /**
+     * 全量重建：先在本地构建一份新的bitmap，写入临时key后再rename覆盖，切换过程中不会出现空的过滤器
+     * @param ids 所有存在的id，可以是流式读取数据库的迭代器
+     * @return 重建的元素个数
+     */
+    public synchronized long rebuild(Iterable<?> ids) {
+        addedDuringSwap = new ConcurrentLinkedQueue<>();
+        try {
+            return rebuildInternal(ids);
+        } finally {
+            addedDuringSwap = null;
+        }
+    }
+
+    private long rebuildInternal(Iterable<?> ids) {
+        // 1. 本地构建新的bitmap
+        AtomicLongArray fresh = new AtomicLongArray((int) (numBits / 64));
+        long count = 0;
+        for (Object id : ids) {
+            setBits(fresh, offsets(id));
+            count++;
+        }
+
+        // 2. 写入临时key后rename，保证原子替换
+        byte[] tmpKey = (key + ":tmp").getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = toBytes(fresh);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.set(tmpKey, bytes);
+            connection.rename(tmpKey, rawKey);
+            return null;
+        });
+
+        // 3. 切换本地镜像，再补上重建期间新增的元素
+        // 补写之后才收到的新增通知由putLocal在BLOOM_REBUILD_REPLAY_MILLIS内自己补写redis
+        replayRedisUntil = System.currentTimeMillis() + SystemConstants.BLOOM_REBUILD_REPLAY_MILLIS;
+        bits = fresh;
+        ready = true;
+        for (Object id : addedDuringSwap) {
+            long[] offsets = offsets(id);
+            setBits(fresh, offsets);
+            setRedisBits(offsets);
+        }
+        log.info("布隆过滤器重建完成，key = {}，元素个数 = {}，bit数 = {}，哈希函数个数 = {}", key, count, numBits, numHashes);
+        return count;
+    }
+
+    private void setRedisBits(long[] offsets) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.setBit(rawKey, offset, true);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 计算元素对应的k个bit位，用两个哈希值组合出k个哈希值（Kirsch-Mitzenmacher）
+     */
+    private long[] offsets(Object id) {
+        long[] hash = MurmurHash.hash128(id.toString());
+        long[] offsets = new long[numHashes];
+        long combined = hash[0];
+        for (int i = 0; i < numHashes; i++) {
+            offsets[i] = (combined & Long.MAX_VALUE) % numBits;
+            combined += hash[1];
+        }
+        return offsets;
+    }
+
+    private static boolean getBit(AtomicLongArray array, long offset) {
+        return (array.get((int) (offset >>> 6)) & (1L << (63 - (offset & 63)))) != 0;
+    }
+
+    private static void setBits(AtomicLongArray array, long[] offsets) {
+        for (long offset : offsets) {
+            long mask = 1L << (63 - (offset & 63));
+            array.getAndUpdate((int) (offset >>> 6), word -> word | mask);
+        }
+    }
+
+    /**
+     * redis的bitmap中，第0位是第0个字节的最高位，因此按大端序把字节拼成long即可
+     */
+    private AtomicLongArray fromBytes(byte[] bytes) {
+        AtomicLongArray array = new AtomicLongArray((int) (numBits / 64));
+        int limit = Math.min(bytes.length, array.length() * 8);
+        for (int i = 0; i < limit; i++) {
+            long shift = 56 - (i & 7) * 8L;
+            int index = i >>> 3;
+            array.set(index, array.get(index) | ((bytes[i] & 0xFFL) << shift));
+        }
+        return array;
+    }
+
+    private static byte[] toBytes(AtomicLongArray array) {
+        byte[] bytes = new byte[array.length() * 8];
+        for (int i = 0; i < array.length(); i++) {
+            long word = array.get(i);
+            for (int j = 0; j < 8; j++) {
+                bytes[i * 8 + j] = (byte) (word >>> (56 - j * 8));
+            }
+        }
+        return bytes;
+    }
+}
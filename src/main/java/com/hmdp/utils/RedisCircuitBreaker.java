@@ -0,0 +1,276 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.CircuitBreakerStats;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * redis熔断器，redis变慢或宕机时快速失败，不让每个请求都阻塞到lettuce的命令超时
+ * 1. 关闭（CLOSED）：正常放行，连续失败（连接失败、命令超时、慢调用）达到阈值后打开
+ * 2. 打开（OPEN）：直接拒绝，调用方走降级逻辑（返回本地的旧数据、跳过写入），经过一段时间后进入半开
+ * 3. 半开（HALF_OPEN）：同时只放少量探测请求过去，全部成功则关闭，任意一个失败则重新打开
+ * 只有连接失败和超时算失败，redis正常返回的错误（比如脚本错误）说明redis是可用的，不算失败
+ */
+
+@Slf4j
+@Component
+public class RedisCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long slowCallMillis;
+    private final long openMillis;
+    private final int halfOpenProbes;
+
+    private volatile State state = State.CLOSED;
+    private volatile long stateSince = System.currentTimeMillis();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    // 半开状态下正在进行和已经成功的探测请求数，只在持有锁时修改
+    private int probesInFlight;
+    private int probeSuccesses;
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder halfOpened = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+
+    public RedisCircuitBreaker() {
+        this(SystemConstants.CIRCUIT_FAILURE_THRESHOLD, SystemConstants.CIRCUIT_SLOW_CALL_MILLIS,
+                SystemConstants.CIRCUIT_OPEN_MILLIS, SystemConstants.CIRCUIT_HALF_OPEN_PROBES);
+    }
+
+    /**
+     * @param failureThreshold 连续失败多少次后打开
+     * @param slowCallMillis 超过这个耗时（毫秒）的调用按失败处理
+     * @param openMillis 打开后多久进入半开
+     * @param halfOpenProbes 半开状态同时放行的探测请求数
+     */
+    public RedisCircuitBreaker(int failureThreshold, long slowCallMillis, long openMillis, int halfOpenProbes) {
+        this.failureThreshold = failureThreshold;
+        this.slowCallMillis = slowCallMillis;
+        this.openMillis = openMillis;
+        this.halfOpenProbes = halfOpenProbes;
+    }
+
+    /**
+     * 执行redis操作，熔断中或者操作失败时执行降级逻辑
+     * @param action redis操作
+     * @param fallback 降级逻辑
+     * @return
+     * @param <T>
+     */
+    public <T> T execute(Supplier<T> action, Supplier<T> fallback) {
+        State permit = tryAcquire();
+        if (permit == null) {
+            return fallback.get();
+        }
+        try {
+            return call(action, permit);
+        } catch (RuntimeException e) {
+            if (!isFailure(e)) {
+                throw e;
+            }
+            log.debug("redis调用失败，执行降级逻辑：{}", e.getMessage());
+            return fallback.get();
+        }
+    }
+
+    /**
+     * 执行redis操作，熔断中直接抛出RedisConnectionFailureException，用于不能静默跳过的写操作（比如删除缓存）
+     * @param action redis操作
+     * @return
+     * @param <T>
+     */
+    public <T> T execute(Supplier<T> action) {
+        State permit = tryAcquire();
+        if (permit == null) {
+            throw new RedisConnectionFailureException("redis熔断中，拒绝调用");
+        }
+        return call(action, permit);
+    }
+
+    /**
+     * 执行没有返回值的redis操作，熔断中直接抛出RedisConnectionFailureException
+     * @param action
+     */
+    public void run(Runnable action) {
+        execute(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * 执行没有返回值的redis操作，熔断中或者操作失败时执行降级逻辑
+     * @param action
+     * @param fallback
+     */
+    public void run(Runnable action, Runnable fallback) {
+        execute(() -> {
+            action.run();
+            return null;
+        }, () -> {
+            fallback.run();
+            return null;
+        });
+    }
+
+    /**
+     * 是否处于关闭状态，非关闭状态下调用方应跳过重建、刷新有效期等非必要的redis操作
+     */
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public CircuitBreakerStats getStats() {
+        return CircuitBreakerStats.builder()
+                .state(state.name())
+                .stateSince(stateSince)
+                .consecutiveFailures(consecutiveFailures.get())
+                .calls(calls.sum())
+                .failures(failures.sum())
+                .shed(shed.sum())
+                .opened(opened.sum())
+                .halfOpened(halfOpened.sum())
+                .closed(closed.sum())
+                .build();
+    }
+
+    /**
+     * 执行并根据耗时和异常记录结果
+     */
+    private <T> T call(Supplier<T> action, State permit) {
+        calls.increment();
+        long begin = System.currentTimeMillis();
+        T result;
+        try {
+            result = action.get();
+        } catch (RuntimeException e) {
+            if (isFailure(e)) {
+                onFailure(permit);
+            } else {
+                // redis正常返回了错误，说明redis是可用的
+                onSuccess(permit);
+            }
+            throw e;
+        }
+        if (System.currentTimeMillis() - begin > slowCallMillis) {
+            onFailure(permit);
+        } else {
+            onSuccess(permit);
+        }
+        return result;
+    }
+
+    /**
+     * 申请放行
+     * @return null表示拒绝；HALF_OPEN表示本次调用是探测请求；CLOSED表示正常放行
+     */
+    private State tryAcquire() {
+        if (state == State.CLOSED) {
+            return State.CLOSED;
+        }
+        synchronized (this) {
+            // 1. 打开状态，时间没到直接拒绝，时间到了进入半开
+            if (state == State.OPEN) {
+                if (System.currentTimeMillis() - stateSince < openMillis) {
+                    shed.increment();
+                    return null;
+                }
+                transitionTo(State.HALF_OPEN);
+            }
+            // 2. 半开状态，只放行有限的探测请求
+            if (state == State.HALF_OPEN) {
+                if (probesInFlight >= halfOpenProbes) {
+                    shed.increment();
+                    return null;
+                }
+                probesInFlight++;
+                return State.HALF_OPEN;
+            }
+            return State.CLOSED;
+        }
+    }
+
+    private void onSuccess(State permit) {
+        if (permit == State.HALF_OPEN) {
+            synchronized (this) {
+                if (state == State.HALF_OPEN && probesInFlight > 0) {
+                    probesInFlight--;
+                    if (++probeSuccesses >= halfOpenProbes) {
+                        transitionTo(State.CLOSED);
+                    }
+                }
+            }
+            return;
+        }
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+    }
+
+    private void onFailure(State permit) {
+        failures.increment();
+        if (permit == State.HALF_OPEN) {
+            // 探测失败，重新打开
+            synchronized (this) {
+                if (state == State.HALF_OPEN) {
+                    transitionTo(State.OPEN);
+                }
+            }
+            return;
+        }
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            synchronized (this) {
+                if (state == State.CLOSED) {
+                    transitionTo(State.OPEN);
+                }
+            }
+        }
+    }
+
+    /**
+     * 切换状态，调用时必须持有锁
+     */
+    private void transitionTo(State newState) {
+        log.warn("redis熔断器状态变化：{} -> {}", state, newState);
+        state = newState;
+        stateSince = System.currentTimeMillis();
+        consecutiveFailures.set(0);
+        probesInFlight = 0;
+        probeSuccesses = 0;
+        switch (newState) {
+            case OPEN:
+                opened.increment();
+                break;
+            case HALF_OPEN:
+                halfOpened.increment();
+                break;
+            default:
+                closed.increment();
+        }
+    }
+
+    /**
+     * 连接失败和超时算作失败
+     */
+    private static boolean isFailure(RuntimeException e) {
+        return e instanceof DataAccessResourceFailureException || e instanceof TransientDataAccessException;
+    }
+}
@@ -13,17 +13,51 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    // 店铺的hash缓存，列表页按字段读取，销量、评论数按字段加减
+    public static final String CACHE_SHOP_HASH_KEY = "cache:shop:hash:";
     public static final Long CACHE_SHOP_TYPE_TTL = 30L;
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop:type";
+    // 店铺的优惠券列表只缓存序列化后的响应，redis中没有这个key，只用于失效通知
+    public static final String CACHE_VOUCHER_LIST_KEY = "cache:voucher:list:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    // 缓存版本号key的后缀，完整key为 {cache:shop:1}:ver，花括号保证集群模式下和缓存key在同一个slot
+    public static final String CACHE_VERSION_SUFFIX = ":ver";
+    // 缓存版本号key的有效期（分钟），只要比一次重建的耗时长得多即可
+    public static final Long CACHE_VERSION_TTL = 1440L;
+
+    // 本地缓存失效通知的频道，消息内容是要删除的key
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    // 热点key通知的频道，某个节点探测到热点key后通知其它节点也提升为热点
+    public static final String CACHE_HOT_KEY_CHANNEL = "cache:hotkey";
+
+    // 布隆过滤器的bitmap，防止不存在的id打到数据库
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
+    public static final String BLOOM_BLOG_KEY = "bloom:blog";
+    // 布隆过滤器新增元素的通知频道后缀，完整频道为 bloom:shop:add
+    public static final String BLOOM_ADD_CHANNEL_SUFFIX = ":add";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final String LOCK_KEY_PREFIX = "lock:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    // 秒杀券的库存、开始时间、结束时间（hash），秒杀脚本中判断时间窗口和扣减库存
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    // 秒杀订单的消息队列和消费组，分区数大于1时其它分区为 stream.orders:1、stream.orders:2 ...
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    // 超过重试次数的订单消息移到这个死信队列，可以查看和重放
+    public static final String SECKILL_ORDER_DEAD_LETTER_KEY = "stream.orders.dlq";
+    // 秒杀券售罄、补货的通知频道，消息内容是优惠券id
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:restock";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    // 店铺缓存预热完成的标记，存在则说明共享的redis已经预热过，其它节点启动时不再重复预热
+    public static final String SHOP_WARM_UP_KEY = "shop:warm-up";
+    public static final Long SHOP_WARM_UP_TTL = 1440L;
     public static final String USER_SIGN_KEY = "sign:";
     public static final String INCREMENT_ID_KEY = "icr:";
     public static final String ORDER_PREFIX = "order:";
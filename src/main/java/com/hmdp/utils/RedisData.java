@@ -8,4 +8,5 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;   // 逻辑过期时间
     private Object data;
+    private Long rebuildCost;   // 上一次重建缓存的耗时（毫秒），用于提前刷新，没有则为null
 }
@@ -0,0 +1,219 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.NumberUtil;
+import com.hmdp.dto.HotKey;
+import com.hmdp.dto.RefreshAheadStats;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 热点key的提前刷新
+ * 逻辑过期只有在请求读到过期数据时才触发重建，过期后的第一批请求一定拿到旧数据，这里在过期之前就把最热的key刷新掉
+ * 1. 每隔REFRESH_AHEAD_SCAN_INTERVAL从CacheClient的访问统计中取每个注册前缀下最热的前N个key，
+ *    读出redis中的逻辑过期时间，安排在过期前REFRESH_AHEAD_LEAD_MILLIS刷新；跌出前N名的key取消
+ * 2. 所有key共用一个时间轮，只有一个线程，不会每个key一个线程或一个定时任务
+ * 3. 到期时先申请数据库并发额度，用完了推迟一会再试；拿到额度后提交给重建调度器执行，和请求触发的重建按key去重
+ * 4. 多个节点之间靠互斥锁和拿到锁后再读一次逻辑过期时间保证只有一个节点查询数据库
+ */
+
+@Slf4j
+@Component
+public class RefreshAheadScheduler {
+
+    private final HashedWheelTimer timer = new HashedWheelTimer(r -> {
+        Thread t = new Thread(r, "cache-refresh-ahead");
+        t.setDaemon(true);
+        return t;
+    }, SystemConstants.REFRESH_AHEAD_TICK_MILLIS, TimeUnit.MILLISECONDS, SystemConstants.REFRESH_AHEAD_WHEEL_SIZE);
+
+    // 提前刷新同时查询数据库的额度
+    private final Semaphore dbPermits = new Semaphore(SystemConstants.REFRESH_AHEAD_DB_PERMITS);
+
+    // key前缀 -> 刷新方式
+    private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+    // 时间轮中等待刷新的key
+    private final Map<String, Timeout> pending = new ConcurrentHashMap<>();
+
+    private final LongAdder scheduled = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder refreshed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder deferred = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Resource
+    private CacheRebuildScheduler cacheRebuildScheduler;
+
+    @Resource
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+
+    /**
+     * 注册需要提前刷新的key前缀，这个前缀下的key必须是按逻辑过期写入的，id为Long
+     * @param keyPrefix
+     * @param lockKeyPrefix 和查询时使用的锁相同，刷新和请求触发的重建互斥
+     * @param dbFallback 查询数据库的逻辑
+     * @param time 逻辑过期时间
+     * @param unit
+     */
+    public void register(String keyPrefix, String lockKeyPrefix, Function<Long, ?> dbFallback, Long time, TimeUnit unit) {
+        registrations.put(keyPrefix, new Registration(lockKeyPrefix, dbFallback, time, unit));
+    }
+
+
+    /**
+     * 按最新的访问统计调整时间轮中的key
+     */
+    @Scheduled(fixedRate = SystemConstants.REFRESH_AHEAD_SCAN_INTERVAL)
+    public void scan() {
+        // redis不可用时不刷新，已经安排的任务到期时也会跳过
+        if (registrations.isEmpty() || !redisCircuitBreaker.isClosed()) {
+            return;
+        }
+        // 1. 每个注册的前缀取最热的前N个key
+        Map<String, Integer> counts = new HashMap<>();
+        Map<String, Long> top = new HashMap<>();
+        for (HotKey hotKey : cacheMetrics.topKeys(SystemConstants.HOT_KEY_CAPACITY)) {
+            String key = hotKey.getKey();
+            int index = key.lastIndexOf(':');
+            String keyPrefix = key.substring(0, index + 1);
+            String id = key.substring(index + 1);
+            // 同一前缀下不是id的key（比如cache:shop:type）跳过
+            if (!registrations.containsKey(keyPrefix) || !NumberUtil.isLong(id)
+                    || counts.merge(keyPrefix, 1, Integer::sum) > SystemConstants.REFRESH_AHEAD_TOP_N) {
+                continue;
+            }
+            top.put(key, Long.valueOf(id));
+        }
+
+        // 2. 跌出前N名的key取消
+        pending.entrySet().removeIf(e -> {
+            if (top.containsKey(e.getKey())) {
+                return false;
+            }
+            e.getValue().cancel();
+            cancelled.increment();
+            return true;
+        });
+
+        // 3. 新进入前N名的key按逻辑过期时间放入时间轮
+        top.forEach((key, id) -> {
+            if (!pending.containsKey(key)) {
+                schedule(key, id);
+            }
+        });
+    }
+
+
+    private void schedule(String key, Long id) {
+        LocalDateTime expireTime = cacheClient.readLogicalExpireTime(key);
+        if (expireTime == null) {
+            // redis中没有，等下一次请求回填后再安排
+            return;
+        }
+        long expireAt = expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long delay = expireAt - SystemConstants.REFRESH_AHEAD_LEAD_MILLIS - System.currentTimeMillis();
+        Registration registration = registrations.get(key.substring(0, key.lastIndexOf(':') + 1));
+        pending.put(key, timer.newTimeout(timeout -> fire(timeout, key, id, registration),
+                Math.max(0, delay), TimeUnit.MILLISECONDS));
+        scheduled.increment();
+    }
+
+
+    /**
+     * 时间轮到期，在时间轮的线程上执行，不能阻塞
+     */
+    private void fire(Timeout timeout, String key, Long id, Registration registration) {
+        // 1. 数据库额度用完，推迟再试；推迟期间被取消的不再安排
+        if (!dbPermits.tryAcquire()) {
+            deferred.increment();
+            Timeout retry = timer.newTimeout(t -> fire(t, key, id, registration),
+                    SystemConstants.REFRESH_AHEAD_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+            if (!pending.replace(key, timeout, retry)) {
+                retry.cancel();
+            }
+            return;
+        }
+
+        // 2. 提交给重建调度器查询数据库，逻辑过期时间晚于refreshBefore说明其它节点已经刷新过了
+        LocalDateTime refreshBefore = LocalDateTime.now().plus(Duration.ofMillis(SystemConstants.REFRESH_AHEAD_LEAD_MILLIS));
+        boolean submitted = cacheRebuildScheduler.submit(key, () -> {
+            try {
+                boolean loaded = cacheClient.refreshAhead(key, registration.lockKeyPrefix + id,
+                        () -> registration.dbFallback.apply(id), registration.time, registration.unit, refreshBefore);
+                (loaded ? refreshed : skipped).increment();
+            } catch (RuntimeException e) {
+                failed.increment();
+                throw e;
+            } finally {
+                dbPermits.release();
+                // 刷新后从时间轮中移除，下一次扫描时仍在前N名的按新的过期时间重新安排
+                pending.remove(key, timeout);
+            }
+        });
+
+        // 3. 同一个key正在重建或者重建队列已满，这一轮不再刷新
+        if (!submitted) {
+            dbPermits.release();
+            skipped.increment();
+            pending.remove(key, timeout);
+        }
+    }
+
+
+    public RefreshAheadStats getStats() {
+        return RefreshAheadStats.builder()
+                .pending(pending.size())
+                .inFlight(SystemConstants.REFRESH_AHEAD_DB_PERMITS - dbPermits.availablePermits())
+                .scheduled(scheduled.sum())
+                .cancelled(cancelled.sum())
+                .refreshed(refreshed.sum())
+                .skipped(skipped.sum())
+                .deferred(deferred.sum())
+                .failed(failed.sum())
+                .build();
+    }
+
+
+    @PreDestroy
+    public void shutdown() {
+        timer.stop();
+    }
+
+
+    private static class Registration {
+        private final String lockKeyPrefix;
+        private final Function<Long, ?> dbFallback;
+        private final Long time;
+        private final TimeUnit unit;
+
+        Registration(String lockKeyPrefix, Function<Long, ?> dbFallback, Long time, TimeUnit unit) {
+            this.lockKeyPrefix = lockKeyPrefix;
+            this.dbFallback = dbFallback;
+            this.time = time;
+            this.unit = unit;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
@@ -19,6 +21,13 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    // 登录用户的本地副本，只在redis不可用时使用，熔断期间已经登录的用户不会被当成未登录
+    private final LRUCache<String, UserDTO> localUsers = CacheUtil.newLRUCache(
+            SystemConstants.LOGIN_USER_LOCAL_CAPACITY, TimeUnit.MINUTES.toMillis(RedisConstants.LOGIN_USER_TTL));
+
 
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
@@ -31,23 +40,39 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 
         // 2. 基于token获取redis中的用户
         String key = RedisConstants.LOGIN_USER_KEY + token;
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(key);
+        Map<Object, Object> userMap = redisCircuitBreaker.execute(() -> stringRedisTemplate.opsForHash().entries(key), () -> null);
+
+        // 2.1 redis不可用，使用本地副本，也不刷新有效期
+        if (userMap == null) {
+            UserDTO userDTO = localUsers.get(token);
+            if (userDTO != null) {
+                UserHolder.saveUser(userDTO);
+            }
+            return true;
+        }
 
         // 3. 判断用户是否存在
         if (userMap.isEmpty()) {
             // 4. 不存在，放行到下一个拦截器
+            localUsers.remove(token);
             return true;
         }
 
         // 5. 将查询到的Hash数据转为UserDTO对象
         UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
+        // 本地副本只在第一次见到或用户信息变化时写入，不在每个请求上都写一次LRU；get会刷新最近访问时间，活跃用户的副本不会过期
+        if (!userDTO.equals(localUsers.get(token))) {
+            localUsers.put(token, userDTO);
+        }
 
         // 6. 存在，保存用户信息到ThreadLocal，以便后面的业务能够获取该用户的信息
         UserHolder.saveUser(userDTO);
 
         // 7. 刷新token的有效期
         // 因为有效期的逻辑是超过有效期都没访问过才删除该用户数据，如果有效期内该用户又有访问（保持活跃）则刷新有效期
-        stringRedisTemplate.expire(key, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
+        // 刷新失败不影响本次请求
+        redisCircuitBreaker.run(() -> stringRedisTemplate.expire(key, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES), () -> {
+        });
 
         // 8. 放行
         return true;
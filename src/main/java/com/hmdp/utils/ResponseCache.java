@@ -0,0 +1,78 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.dto.Result;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.function.Supplier;
+
+/**
+ * 响应缓存，保存序列化后的Result字节，命中时直接写到响应流中
+ * 读多写少的查询接口（店铺详情、店铺类型、优惠券列表）命中缓存时，不用把redis中的数据反序列化成对象，也不用再序列化成JSON
+ * 1. 只保存在本节点，按缓存key（和CacheClient中的key相同）索引，容量有限，按LRU淘汰
+ * 2. CacheClient中对应key显式写入、删除或收到失效通知时同时删除，因此数据更新后各节点都会失效；查询回填不会删除
+ * 3. 有效期很短，逻辑过期的数据、并发更新时写入的旧响应最多脏RESPONSE_CACHE_TTL
+ * 只缓存成功的响应，失败的响应（比如店铺不存在）每次都走原来的查询逻辑
+ */
+
+@Component
+public class ResponseCache {
+
+    private final LRUCache<String, byte[]> cache =
+            CacheUtil.newLRUCache(SystemConstants.RESPONSE_CACHE_CAPACITY, SystemConstants.RESPONSE_CACHE_TTL);
+
+    @Resource
+    private ObjectMapper objectMapper;
+    @Resource
+    private CacheClient cacheClient;
+
+    @PostConstruct
+    private void init() {
+        cacheClient.addLocalChangeListener(cache::remove);
+    }
+
+    /**
+     * 查询响应缓存，未命中时执行查询逻辑，把结果序列化后缓存起来
+     * @param key 缓存key，和查询逻辑中使用的缓存key相同，数据变化时才能被删除
+     * @param loader 原来的查询逻辑
+     * @return 序列化后的响应
+     */
+    public ResponseEntity<byte[]> get(String key, Supplier<Result> loader) {
+        // 1. 命中直接返回
+        byte[] body = cache.get(key);
+        if (body != null) {
+            return toResponse(body);
+        }
+        // 2. 未命中，执行原来的查询逻辑
+        Result result = loader.get();
+        try {
+            body = objectMapper.writeValueAsBytes(result);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+        // 3. 只缓存成功的响应
+        if (Boolean.TRUE.equals(result.getSuccess())) {
+            cache.put(key, body);
+        }
+        return toResponse(body);
+    }
+
+    /**
+     * 删除本节点的响应缓存
+     * @param key
+     */
+    public void evict(String key) {
+        cache.remove(key);
+    }
+
+    private static ResponseEntity<byte[]> toResponse(byte[] body) {
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+}
@@ -0,0 +1,82 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * 进程内的请求合并（single-flight）
+ * 同一个key同一时刻只有一个线程真正执行加载逻辑，其它并发的线程等待它的结果，不会重复查数据库
+ * 只在本JVM内生效，跨节点仍需要配合redis的互斥锁
+ */
+
+public class SingleFlight {
+
+    // key -> 正在执行的加载任务
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * 执行加载逻辑，同一个key的并发调用共享同一次执行的结果
+     * @param key 合并的依据，一般就是缓存的key
+     * @param loader 真正的加载逻辑
+     * @return 加载结果
+     * @param <T> 结果类型
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+
+        // 1. 已经有线程在加载了，等它的结果即可
+        if (existing != null) {
+            return (T) await(existing);
+        }
+
+        // 2. 当前线程是第一个，负责执行加载逻辑
+        try {
+            T result = loader.get();
+            future.complete(result);
+            return result;
+        } catch (Throwable e) {
+            // Error和偷偷抛出的受检异常也要通知等待的线程，否则它们会一直等下去
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            // 加载结束后移除，之后的请求会重新走缓存
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * 当前正在加载的key的个数
+     */
+    public int size() {
+        return inFlight.size();
+    }
+
+    private Object await(CompletableFuture<Object> future) {
+        try {
+            // 加载线程卡住（比如数据库连接池耗尽）时，等待的线程不能跟着一直阻塞
+            return future.get(SystemConstants.SINGLE_FLIGHT_WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("等待缓存加载超时", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            // 把加载线程抛出的异常原样抛给等待的线程
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new CompletionException(cause);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀券售罄的本地标记
+ * 售罄之后每次抢购仍要生成订单id、执行一次lua脚本才知道库存不足，两次redis往返都是白费的
+ * 1. lua脚本返回库存不足时在本节点标记售罄，并通过发布订阅通知其它节点也标记
+ * 2. 抢购时先查本地标记，已售罄直接返回，不访问redis
+ * 3. 补充库存后删除所有节点的标记
+ * 发布订阅不保证送达，售罄通知和补货通知也可能乱序，所以标记只保留SOLD_OUT_GATE_TTL，
+ * 过期后放一个请求去redis确认，仍然售罄则重新标记，错误的标记最多影响这么长时间
+ */
+
+@Slf4j
+@Component
+public class SoldOutGate {
+
+    // 优惠券id -> 标记的过期时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    /**
+     * 是否已售罄，只查本地标记
+     * @param voucherId
+     * @return
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long until = soldOut.get(voucherId);
+        if (until == null) {
+            return false;
+        }
+        if (until < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, until);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄并通知其它节点，本节点已经标记过的不再重复通知
+     * @param voucherId
+     */
+    public void markSoldOut(Long voucherId) {
+        if (markLocal(voucherId)) {
+            publish(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, voucherId);
+        }
+    }
+
+    /**
+     * 补充库存后删除所有节点（包括本节点）的标记
+     * @param voucherId
+     */
+    public void reset(Long voucherId) {
+        resetLocal(voucherId);
+        publish(RedisConstants.SECKILL_RESTOCK_CHANNEL, voucherId);
+    }
+
+    /**
+     * 只标记本节点，收到其它节点的售罄通知时调用
+     * @return 之前是否没有标记
+     */
+    public boolean markLocal(Long voucherId) {
+        Long previous = soldOut.put(voucherId, System.currentTimeMillis() + SystemConstants.SOLD_OUT_GATE_TTL);
+        if (previous == null) {
+            log.info("秒杀券已售罄：{}", voucherId);
+        }
+        return previous == null;
+    }
+
+    /**
+     * 只删除本节点的标记，收到其它节点的补货通知时调用
+     */
+    public void resetLocal(Long voucherId) {
+        soldOut.remove(voucherId);
+    }
+
+    private void publish(String channel, Long voucherId) {
+        // redis不可用时只影响其它节点，它们的请求仍会由lua脚本判断
+        redisCircuitBreaker.run(() -> stringRedisTemplate.convertAndSend(channel, voucherId.toString()), () -> {
+        });
+    }
+}
@@ -5,4 +5,139 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    // 店铺列表页从hash缓存中读取的字段
+    public static final String[] SHOP_LIST_FIELDS = {"id", "name", "typeId", "images", "area", "address",
+            "x", "y", "avgPrice", "sold", "comments", "score", "openHours"};
+
+    // 本地缓存（L1）最多缓存的条目数
+    // 只放最常用的少量对象，大量的店铺、博客放在堆外缓存中
+    public static final int LOCAL_CACHE_CAPACITY = 2000;
+    // 本地缓存（L1）条目的最长有效期（毫秒），跨节点失效通知丢失时最多脏这么久
+    public static final long LOCAL_CACHE_TTL = 60 * 1000L;
+
+    // 堆外缓存的段数，每个段一把锁
+    public static final int OFF_HEAP_SEGMENTS = 16;
+    // 堆外缓存条目的最长有效期（毫秒），跨节点失效通知丢失时最多脏这么久
+    public static final long OFF_HEAP_TTL = 5 * 60 * 1000L;
+
+    // 响应缓存最多缓存的响应数
+    public static final int RESPONSE_CACHE_CAPACITY = 1000;
+    // 响应缓存的有效期（毫秒），只保存在本节点，跨节点失效通知丢失时最多脏这么久
+    public static final long RESPONSE_CACHE_TTL = 10 * 1000L;
+
+    // 互斥锁重建缓存时，没抢到锁最多等待其它节点重建的次数
+    public static final int MUTEX_MAX_RETRIES = 20;
+    // 互斥锁重建缓存时，没抢到锁每次等待的时间（毫秒）
+    public static final long MUTEX_RETRY_INTERVAL = 50L;
+
+    // 合并加载时等待其它线程加载结果的最长时间（毫秒），要大于一次互斥锁重建的最长等待
+    public static final long SINGLE_FLIGHT_WAIT_TIMEOUT = 3000L;
+
+    // 概率性提前刷新（XFetch）的系数，越大越倾向于提前刷新，1.0为论文推荐值
+    public static final double XFETCH_BETA = 1.0;
+
+    // 延迟双删中第二次删除（刷新）距离事务提交的延迟（毫秒），要大于一次读数据库+写缓存的耗时
+    public static final long CACHE_DOUBLE_DELETE_DELAY = 1000L;
+
+    // 缓存重建的最小/最大并发数，实际并发在两者之间根据重建耗时自适应
+    public static final int REBUILD_MIN_CONCURRENCY = 2;
+    public static final int REBUILD_MAX_CONCURRENCY = 10;
+    // 缓存重建任务的等待队列长度，满了直接丢弃任务，调用方返回旧数据
+    public static final int REBUILD_QUEUE_CAPACITY = 200;
+    // 缓存重建耗时阈值（毫秒），超过则认为数据库压力过大，并发减半
+    public static final long REBUILD_LATENCY_THRESHOLD = 500L;
+
+    // redis熔断：连续失败（连接失败、超时、慢调用）多少次后打开
+    public static final int CIRCUIT_FAILURE_THRESHOLD = 10;
+    // redis熔断：一次调用超过多少毫秒算慢调用，按失败处理
+    public static final long CIRCUIT_SLOW_CALL_MILLIS = 500L;
+    // redis熔断：打开后多久（毫秒）放少量探测请求过去
+    public static final long CIRCUIT_OPEN_MILLIS = 5000L;
+    // redis熔断：半开状态同时放过去的探测请求数，全部成功后关闭
+    public static final int CIRCUIT_HALF_OPEN_PROBES = 3;
+    // redis熔断期间用于识别登录用户的本地缓存最多缓存的用户数
+    public static final int LOGIN_USER_LOCAL_CAPACITY = 10000;
+
+    // 提前刷新：每隔多久（毫秒）从访问统计中挑选最热的key安排刷新
+    public static final long REFRESH_AHEAD_SCAN_INTERVAL = 10 * 1000L;
+    // 提前刷新：每个key前缀最多安排刷新的key个数
+    public static final int REFRESH_AHEAD_TOP_N = 100;
+    // 提前刷新：在逻辑过期前多久（毫秒）刷新，要大于扫描间隔，否则两次扫描之间过期的key赶不上
+    public static final long REFRESH_AHEAD_LEAD_MILLIS = 60 * 1000L;
+    // 提前刷新：同时查询数据库的最大个数，用完了推迟一段时间（毫秒）再试，不和请求触发的重建抢数据库连接
+    public static final int REFRESH_AHEAD_DB_PERMITS = 4;
+    public static final long REFRESH_AHEAD_RETRY_MILLIS = 200L;
+    // 提前刷新时间轮的刻度（毫秒）和槽数
+    public static final long REFRESH_AHEAD_TICK_MILLIS = 100L;
+    public static final int REFRESH_AHEAD_WHEEL_SIZE = 512;
+
+    // 秒杀券预热的间隔（毫秒），以及提前多久（毫秒）把即将开始的秒杀券写入redis
+    public static final long SECKILL_PREHEAT_INTERVAL = 60 * 1000L;
+    public static final long SECKILL_PREHEAT_AHEAD = 10 * 60 * 1000L;
+    // 秒杀结束后redis中的秒杀券hash再保留多久（毫秒）
+    public static final long SECKILL_VOUCHER_RETENTION = 24 * 60 * 60 * 1000L;
+
+    // 秒杀券售罄的本地标记保留多久（毫秒），过期后放一个请求去redis确认
+    public static final long SOLD_OUT_GATE_TTL = 60 * 1000L;
+
+    // 读取订单消息队列出错（redis不可用）后等待多久（毫秒）再读
+    public static final long ORDER_READ_ERROR_BACKOFF = 1000L;
+    // 回收待确认订单消息的间隔（毫秒）、每页检查的消息数和每个分区每次最多翻的页数
+    public static final long ORDER_RECLAIM_INTERVAL = 5000L;
+    public static final int ORDER_RECLAIM_BATCH = 100;
+    public static final int ORDER_RECLAIM_MAX_PAGES = 10;
+    // 待确认的订单消息闲置多久（毫秒）才重试，之后每失败一次翻倍，最多ORDER_RETRY_MAX_BACKOFF
+    // 要远大于一批订单的处理耗时，否则会把其它消费者正在处理的消息抢过来
+    public static final long ORDER_RETRY_MIN_IDLE = 30 * 1000L;
+    public static final long ORDER_RETRY_MAX_BACKOFF = 10 * 60 * 1000L;
+    // 订单消息最多投递几次，仍然失败则移到死信队列
+    public static final int ORDER_MAX_DELIVERIES = 5;
+    // 死信中记录的异常信息的最大长度
+    public static final int ORDER_DEAD_LETTER_ERROR_LENGTH = 500;
+
+    // 热点key采样率，每多少次访问记录1次
+    public static final int HOT_KEY_SAMPLE_RATE = 16;
+    // 热点key最多记录的key个数
+    public static final int HOT_KEY_CAPACITY = 10000;
+    // 热点key计数减半的间隔（毫秒）
+    public static final long HOT_KEY_DECAY_INTERVAL = 60 * 1000L;
+
+    // 热点探测的滑动窗口：槽数 * 每个槽的时长（毫秒）
+    public static final int HOT_KEY_WINDOW_SLOTS = 10;
+    public static final long HOT_KEY_SLOT_MILLIS = 1000L;
+    // 热点探测Count-Min Sketch每行的计数器个数
+    public static final int HOT_KEY_SKETCH_WIDTH = 4096;
+    // 本节点一个窗口内访问次数达到多少提升为热点key
+    public static final long HOT_KEY_THRESHOLD = 1000L;
+    // 本节点最多保留的热点key副本个数
+    public static final int HOT_KEY_MAX_PINNED = 100;
+    // 热点key副本从redis刷新的间隔（毫秒）
+    public static final long HOT_KEY_REFRESH_INTERVAL = 1000L;
+
+    // 本地缓存快照最多保存的条目数（按访问次数取最热的）
+    public static final int SNAPSHOT_MAX_ENTRIES = 5000;
+    // 本地缓存快照的写入间隔（毫秒）
+    public static final long SNAPSHOT_INTERVAL = 60 * 1000L;
+    // 快照超过多久（毫秒）就不再加载，避免长时间停机后加载过旧的数据
+    public static final long SNAPSHOT_MAX_AGE = 10 * 60 * 1000L;
+    // 快照条目和redis核对的间隔（毫秒）与每次核对的最大条目数
+    public static final long SNAPSHOT_VALIDATE_INTERVAL = 200L;
+    public static final int SNAPSHOT_VALIDATE_BATCH = 500;
+
+    // 启动预热时每页读取的店铺数
+    public static final int WARM_UP_PAGE_SIZE = 500;
+    // 启动预热时写入redis的线程数
+    public static final int WARM_UP_THREADS = 4;
+    // 其它节点正在预热时最多等待多久（秒），等到后看到预热标记直接跳过
+    public static final long WARM_UP_LOCK_WAIT = 10 * 60L;
+    // 预热失败后多久（毫秒）重试一次，成功之前节点一直不就绪
+    public static final long WARM_UP_RETRY_INTERVAL = 60 * 1000L;
+
+    // 布隆过滤器预计的元素个数与误判率
+    public static final long BLOOM_EXPECTED_INSERTIONS = 1000000L;
+    public static final double BLOOM_FPP = 0.01;
+    // 重建布隆过滤器时每次从数据库读取的id个数
+    public static final int BLOOM_REBUILD_BATCH_SIZE = 1000;
+    // 重建完成后多久（毫秒）内收到的新增通知还要补写redis，要大于发布订阅消息的延迟
+    public static final long BLOOM_REBUILD_REPLAY_MILLIS = 10 * 1000L;
 }
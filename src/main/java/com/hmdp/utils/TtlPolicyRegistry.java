@@ -0,0 +1,105 @@
+package com.hmdp.utils;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存过期时间策略，按key前缀配置（hmdp.cache.ttl），用于打散同一批写入的key的过期时间，避免同时过期引起缓存雪崩
+ * 1. 抖动（jitter）：在基础TTL上随机加减一定比例
+ * 2. 分桶（spread + buckets）：在基础TTL上再加一段偏移，偏移量按key的哈希分到buckets个桶中，同一个key每次落在同一个桶
+ *    buckets不配置时偏移量在[0, spread]内随机
+ * 3. 可以覆盖代码中传入的TTL（ttl），不改代码即可调整某一类key的过期时间
+ * 多个前缀都能匹配时取最长的那个；都不匹配时只按default-jitter抖动
+ */
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache.ttl")
+public class TtlPolicyRegistry {
+
+    // 没有配置策略的key的抖动比例
+    private double defaultJitter = 0.1;
+
+    // key前缀 -> 策略
+    private Map<String, TtlPolicy> policies = new LinkedHashMap<>();
+
+    /**
+     * 计算实际的过期时间
+     * @param key
+     * @param time 代码中传入的TTL，策略中配置了ttl时以配置为准
+     * @param unit
+     * @return 过期时间（毫秒）
+     */
+    public long ttlMillis(String key, long time, TimeUnit unit) {
+        TtlPolicy policy = policyOf(key);
+        long base = policy != null && policy.getTtl() != null ? policy.getTtl().toMillis() : unit.toMillis(time);
+        long ttl = base + jitter(base, policy);
+        if (policy != null && policy.getSpread() != null) {
+            long spread = policy.getSpread().toMillis();
+            if (policy.getBuckets() != null && policy.getBuckets() > 0) {
+                int buckets = policy.getBuckets();
+                ttl += Math.floorMod(key.hashCode(), buckets) * (spread / buckets);
+            } else if (spread > 0) {
+                ttl += ThreadLocalRandom.current().nextLong(spread + 1);
+            }
+        }
+        return Math.max(1, ttl);
+    }
+
+    /**
+     * 计算空值的过期时间，只抖动，不受策略中ttl和分桶的影响
+     * @param key
+     * @return 过期时间（毫秒）
+     */
+    public long nullTtlMillis(String key) {
+        long base = TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL);
+        return Math.max(1, base + jitter(base, policyOf(key)));
+    }
+
+    private long jitter(long base, TtlPolicy policy) {
+        double jitter = policy != null && policy.getJitter() != null ? policy.getJitter() : defaultJitter;
+        if (jitter <= 0) {
+            return 0;
+        }
+        return (long) (base * jitter * (ThreadLocalRandom.current().nextDouble() * 2 - 1));
+    }
+
+    /**
+     * 最长前缀匹配
+     */
+    private TtlPolicy policyOf(String key) {
+        TtlPolicy matched = null;
+        int matchedLength = -1;
+        for (Map.Entry<String, TtlPolicy> entry : policies.entrySet()) {
+            String prefix = entry.getKey();
+            if (prefix.length() > matchedLength && key.startsWith(prefix)) {
+                matched = entry.getValue();
+                matchedLength = prefix.length();
+            }
+        }
+        return matched;
+    }
+
+
+    /**
+     * 某一类key的过期时间策略
+     */
+    @Data
+    public static class TtlPolicy {
+        // 覆盖代码中传入的TTL，不配置则使用代码中的值
+        private Duration ttl;
+        // 抖动比例，0.1表示在TTL上随机加减10%，不配置则使用default-jitter
+        private Double jitter;
+        // 在TTL上额外增加的偏移范围
+        private Duration spread;
+        // 偏移范围分成多少个桶，不配置则在偏移范围内随机
+        private Integer buckets;
+    }
+}
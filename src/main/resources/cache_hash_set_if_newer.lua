@@ -0,0 +1,17 @@
+-- 带版本号整体回填缓存的hash：写入者在查询数据库之前读取的版本号不小于当前版本号，并且hash不存在时才写入
+-- 回填期间字段被更新过（版本号加1）或者其它请求已经回填过，都不再覆盖，不会用旧数据替换更新后的hash
+-- KEYS[1] hash的key，KEYS[2] 版本号key
+-- ARGV[1] 写入者读到的版本号，ARGV[2] 过期时间（毫秒），ARGV[3...] 字段、值交替
+
+-- 版本号key不存在说明从来没有更新过，当作0
+local current = tonumber(redis.call('get', KEYS[2]) or '0')
+if (tonumber(ARGV[1]) < current) then
+    return 0
+end
+if (redis.call('exists', KEYS[1]) == 1) then
+    return 0
+end
+
+redis.call('hset', KEYS[1], unpack(ARGV, 3))
+redis.call('pexpire', KEYS[1], ARGV[2])
+return 1
@@ -0,0 +1,20 @@
+-- 字段级更新缓存的hash：只有hash已经存在时才更新，不存在（还没缓存或已过期）时什么都不做，等下一次读取时整体回填
+-- 不能直接HINCRBY/HSET，否则会创建出一个只有部分字段的hash，读取时被当成完整的数据
+-- 无论hash是否存在都把版本号加1，正在进行的回填读到的是更新之前的数据，写入时会被拒绝
+-- KEYS[1] hash的key，KEYS[2] 版本号key
+-- ARGV[1] 版本号key的过期时间（毫秒）
+-- ARGV[2] 操作：incr 计数器加减，ARGV[3] 字段，ARGV[4] 增量；set 更新字段，ARGV[3...] 字段、值交替
+
+redis.call('incr', KEYS[2])
+redis.call('pexpire', KEYS[2], ARGV[1])
+
+if (redis.call('exists', KEYS[1]) == 0) then
+    return nil
+end
+
+if (ARGV[2] == 'incr') then
+    return redis.call('hincrby', KEYS[1], ARGV[3], ARGV[4])
+end
+
+redis.call('hset', KEYS[1], unpack(ARGV, 3))
+return 1
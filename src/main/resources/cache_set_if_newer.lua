@@ -0,0 +1,22 @@
+-- 带版本号的缓存写入：写入者在查询数据库之前读取的版本号不小于当前版本号才写入
+-- 数据更新后版本号会加1，更新之前开始的重建拿到的是旧版本号，写入会被拒绝，不会用旧数据覆盖新数据
+-- KEYS[1] 缓存key，KEYS[2] 版本号key
+-- ARGV[1] 缓存值，ARGV[2] 写入者读到的版本号，ARGV[3] 过期时间（毫秒），小于0表示永久有效
+-- ARGV[4] 可选，为1时只在key不存在时写入（预热），已经存在的值一定不比预热读到的旧
+
+-- 版本号key不存在说明从来没有更新过，当作0
+local current = tonumber(redis.call('get', KEYS[2]) or '0')
+if (tonumber(ARGV[2]) < current) then
+    -- 数据在写入者查询数据库之后被更新过，拒绝写入
+    return 0
+end
+if (ARGV[4] == '1' and redis.call('exists', KEYS[1]) == 1) then
+    return 0
+end
+
+if (tonumber(ARGV[3]) < 0) then
+    redis.call('set', KEYS[1], ARGV[1])
+else
+    redis.call('set', KEYS[1], ARGV[1], 'PX', ARGV[3])
+end
+return 1
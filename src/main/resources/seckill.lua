@@ -5,17 +5,45 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 -- 订单id
 local orderId = ARGV[3]
+-- 订单消息发送到的stream，按用户分区
+local streamKey = KEYS[1]
 
 -- 2. 数据key
--- 库存key
+-- 秒杀券key，hash中保存库存、开始时间、结束时间（毫秒时间戳）
+local voucherKey = 'seckill:voucher:' .. voucherId
+-- 库存key（旧版本，还没有预热成hash的秒杀券）
 local stockKey = 'seckill:stock:' .. voucherId
 -- 下单key
 local orderKey = 'seckill:order:' .. voucherId
 
 -- 3. 脚本业务
--- 判断库存是否充足 get stockKey
+-- 判断秒杀是否开始、是否结束 hmget voucherKey stock begin end
+local voucher = redis.call('hmget', voucherKey, 'stock', 'begin', 'end')
+local stock
+if (voucher[1]) then
+    -- 用redis的时间判断，各节点的时钟不一致也不影响
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if (now < tonumber(voucher[2])) then
+        -- 秒杀尚未开始
+        return 3
+    end
+    if (now > tonumber(voucher[3])) then
+        -- 秒杀已经结束
+        return 4
+    end
+    stock = tonumber(voucher[1])
+else
+    stock = tonumber(redis.call('get', stockKey))
+    if (stock == nil) then
+        -- 两个key都不存在：秒杀券不存在、离开始还早没有预热，或者结束后hash已经过期，都不是库存不足
+        return 5
+    end
+end
+
+-- 判断库存是否充足
 -- 注意redis取出的值是字符串，因此要转成数字再比较
-if (tonumber(redis.call('get', stockKey)) <= 0) then
+if (stock <= 0) then
     -- 库存不足
     return 1
 end
@@ -26,13 +54,17 @@ if (redis.call('sismember', orderKey, userId) == 1) then
     return 2
 end
 
--- 扣库存 incrby stockKey -1
-redis.call('incrby', stockKey, -1)
+-- 扣库存 hincrby voucherKey stock -1
+if (voucher[1]) then
+    redis.call('hincrby', voucherKey, 'stock', -1)
+else
+    redis.call('incrby', stockKey, -1)
+end
 
 -- 下单（保存用户） sadd orderKey userId
 redis.call('sadd', orderKey, userId)
 
 -- 发送消息到队列中 xadd stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
 
-return 0
\ No newline at end of file
+return 0
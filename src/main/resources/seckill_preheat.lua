@@ -0,0 +1,20 @@
+-- 预热秒杀券：把库存和时间窗口写入秒杀券hash
+-- KEYS[1] 秒杀券hash，KEYS[2] 旧版本的库存key
+-- ARGV[1] 数据库中的库存，ARGV[2] 开始时间，ARGV[3] 结束时间（毫秒时间戳），ARGV[4] hash的过期时间点（毫秒时间戳）
+
+-- 已经预热过，redis中的库存比数据库中的新，只更新时间窗口
+if (redis.call('exists', KEYS[1]) == 1) then
+    redis.call('hset', KEYS[1], 'begin', ARGV[2], 'end', ARGV[3])
+    redis.call('pexpireat', KEYS[1], ARGV[4])
+    return 0
+end
+
+-- 旧版本的库存key还在（已经开始秒杀的券），以它为准，迁移到hash中后删除
+local stock = redis.call('get', KEYS[2])
+if (not stock) then
+    stock = ARGV[1]
+end
+redis.call('hset', KEYS[1], 'stock', stock, 'begin', ARGV[2], 'end', ARGV[3])
+redis.call('pexpireat', KEYS[1], ARGV[4])
+redis.call('del', KEYS[2])
+return 1
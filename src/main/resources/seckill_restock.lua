@@ -0,0 +1,11 @@
+-- 补充秒杀券库存
+-- KEYS[1] 秒杀券hash，KEYS[2] 旧版本的库存key，ARGV[1] 增加的库存
+-- 两个key都不存在时什么都不做，返回nil，由调用方从数据库预热（数据库中的库存已经加过）
+-- 不能直接INCRBY不存在的旧版本key，否则它只有这次增加的库存，预热时又会以它为准，原来的库存就丢了
+if (redis.call('exists', KEYS[1]) == 1) then
+    return redis.call('hincrby', KEYS[1], 'stock', ARGV[1])
+end
+if (redis.call('exists', KEYS[2]) == 1) then
+    return redis.call('incrby', KEYS[2], ARGV[1])
+end
+return nil
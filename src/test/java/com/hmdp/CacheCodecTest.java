@@ -0,0 +1,56 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+
+class CacheCodecTest {
+
+    private final BinaryCacheCodec binaryCodec = new BinaryCacheCodec();
+    private final JsonCacheCodec jsonCodec = new JsonCacheCodec();
+
+    private Shop shop() {
+        return new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L).setX(120.149192).setY(30.316078)
+                .setAvgPrice(80L).setSold(4215).setComments(3035).setScore(37)
+                .setUpdateTime(LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS));
+    }
+
+    @Test
+    void binaryRoundTripWithLogicalExpire() {
+        Shop shop = shop();
+        LocalDateTime expireTime = LocalDateTime.now().plusMinutes(30).truncatedTo(ChronoUnit.MILLIS);
+
+        byte[] bytes = binaryCodec.encode(shop, expireTime);
+
+        Assertions.assertTrue(binaryCodec.canDecode(bytes));
+        Assertions.assertEquals(expireTime, binaryCodec.readExpireTime(bytes));
+        Assertions.assertEquals(shop, binaryCodec.decode(bytes, Shop.class, true));
+    }
+
+    @Test
+    void binaryKeepsRebuildCost() {
+        byte[] bytes = binaryCodec.encode(shop(), LocalDateTime.now(), 35);
+        Assertions.assertEquals(35, binaryCodec.readRebuildCost(bytes));
+        Assertions.assertEquals(shop(), binaryCodec.decode(bytes, Shop.class, true));
+    }
+
+    @Test
+    void binaryWithoutLogicalExpire() {
+        byte[] bytes = binaryCodec.encode(shop(), null);
+        Assertions.assertNull(binaryCodec.readExpireTime(bytes));
+        Assertions.assertEquals(shop(), binaryCodec.decode(bytes, Shop.class, false));
+    }
+
+    @Test
+    void jsonIsNotMistakenForBinary() {
+        // 切换编码期间redis中同时存在两种格式，json格式的数据不能被当成二进制格式
+        byte[] json = jsonCodec.encode(shop(), LocalDateTime.now());
+        Assertions.assertFalse(binaryCodec.canDecode(json));
+        Assertions.assertEquals("103茶餐厅", jsonCodec.decode(json, Shop.class, true).getName());
+    }
+}
@@ -0,0 +1,44 @@
+package com.hmdp;
+
+import com.hmdp.utils.CacheCompressor;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+class CacheCompressorTest {
+
+    @Test
+    void roundTrip() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < 200; i++) {
+            sb.append("{\"id\":").append(i).append(",\"name\":\"103茶餐厅\",\"area\":\"大关\",\"score\":37},");
+        }
+        byte[] json = sb.append("]").toString().getBytes(StandardCharsets.UTF_8);
+
+        byte[] compressed = CacheCompressor.compress(json);
+        Assertions.assertTrue(CacheCompressor.isCompressed(compressed));
+        Assertions.assertTrue(compressed.length < json.length / 4);
+        Assertions.assertArrayEquals(json, CacheCompressor.decompress(compressed));
+    }
+
+    @Test
+    void incompressibleDataIsStoredAsIs() {
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        random[0] = 1;
+        Assertions.assertSame(random, CacheCompressor.compress(random));
+        Assertions.assertSame(random, CacheCompressor.decompress(random));
+    }
+
+    @Test
+    void uncompressedValuesAreNotMistaken() {
+        byte[] json = "{\"data\":{\"id\":1}}".getBytes(StandardCharsets.UTF_8);
+        byte[] binary = {(byte) 0xFE, 1, 0, 0, 0, 0, 0, 0};
+        Assertions.assertFalse(CacheCompressor.isCompressed(json));
+        Assertions.assertFalse(CacheCompressor.isCompressed(binary));
+        Assertions.assertFalse(CacheCompressor.isCompressed(new byte[0]));
+        Assertions.assertSame(json, CacheCompressor.decompress(json));
+    }
+}
@@ -0,0 +1,73 @@
+package com.hmdp;
+
+import com.hmdp.dto.RebuildStats;
+import com.hmdp.utils.CacheRebuildScheduler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+class CacheRebuildSchedulerTest {
+
+    // 1个线程，队列长度1，耗时阈值1秒
+    private final CacheRebuildScheduler scheduler = new CacheRebuildScheduler(1, 4, 1, 1000L);
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    void duplicateKeyAndFullQueueAreShed() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        Runnable blocking = () -> {
+            await(release);
+            done.countDown();
+        };
+
+        // 第一个任务占住线程，第二个任务进队列
+        Assertions.assertTrue(scheduler.submit("cache:shop:1", blocking));
+        Assertions.assertTrue(scheduler.submit("cache:shop:2", blocking));
+        // 同一个key重复提交被丢弃
+        Assertions.assertFalse(scheduler.submit("cache:shop:1", blocking));
+        // 队列已满被丢弃
+        Assertions.assertFalse(scheduler.submit("cache:shop:3", blocking));
+
+        release.countDown();
+        Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        RebuildStats stats = scheduler.getStats();
+        Assertions.assertEquals(2, stats.getSubmitted());
+        Assertions.assertEquals(1, stats.getDeduplicated());
+        Assertions.assertEquals(1, stats.getRejected());
+    }
+
+    @Test
+    void failureIsCountedAndKeyReleased() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.submit("cache:shop:1", () -> {
+            done.countDown();
+            throw new IllegalStateException("db down");
+        });
+        Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+        // 失败后key被释放，可以再次提交
+        boolean resubmitted = false;
+        for (int i = 0; i < 50 && !resubmitted; i++) {
+            Thread.sleep(20);
+            resubmitted = scheduler.submit("cache:shop:1", () -> { });
+        }
+        Assertions.assertTrue(resubmitted);
+        Assertions.assertEquals(1, scheduler.getStats().getFailed());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.hmdp;
+
+import com.hmdp.utils.HotKeyDetector;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class HotKeyDetectorTest {
+
+    @Test
+    void keyAboveThresholdBecomesHotAndCoolsDown() {
+        // 3个槽，阈值100
+        HotKeyDetector detector = new HotKeyDetector(3, 1000L, 1024, 100);
+        for (int i = 0; i < 99; i++) {
+            Assertions.assertFalse(detector.record("cache:shop:1"));
+        }
+        Assertions.assertTrue(detector.record("cache:shop:1"));
+        Assertions.assertFalse(detector.isHot("cache:shop:2"));
+
+        // 窗口滑过之后冷却
+        detector.rotate();
+        Assertions.assertTrue(detector.isHot("cache:shop:1"));
+        detector.rotate();
+        detector.rotate();
+        Assertions.assertFalse(detector.isHot("cache:shop:1"));
+        Assertions.assertTrue(detector.isCold("cache:shop:1"));
+    }
+
+    @Test
+    void markedKeyIsHot() {
+        HotKeyDetector detector = new HotKeyDetector(3, 1000L, 1024, 100);
+        detector.markHot("cache:shop:1");
+        Assertions.assertTrue(detector.record("cache:shop:1"));
+        Assertions.assertFalse(detector.isCold("cache:shop:1"));
+    }
+}
@@ -0,0 +1,53 @@
+package com.hmdp;
+
+import com.hmdp.utils.OffHeapCache;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+class OffHeapCacheTest {
+
+    @Test
+    void putGetRemove() {
+        OffHeapCache cache = new OffHeapCache(1024, 1);
+        cache.put("cache:shop:1", bytes("shop1"), 60000);
+        cache.put("cache:shop:2", new byte[0], 60000);
+        Assertions.assertArrayEquals(bytes("shop1"), cache.get("cache:shop:1"));
+        Assertions.assertArrayEquals(new byte[0], cache.get("cache:shop:2"));
+
+        // 覆盖写入
+        cache.put("cache:shop:1", bytes("shop1-v2"), 60000);
+        Assertions.assertArrayEquals(bytes("shop1-v2"), cache.get("cache:shop:1"));
+
+        cache.remove("cache:shop:1");
+        Assertions.assertNull(cache.get("cache:shop:1"));
+        Assertions.assertEquals(1, cache.getStats().getEntries());
+    }
+
+    @Test
+    void evictsOldestWhenFullAndHonorsTtl() {
+        // 容量100字节，每条40字节，写第3条时回到开头覆盖第1条
+        OffHeapCache cache = new OffHeapCache(100, 1);
+        cache.put("k1", new byte[40], 60000);
+        cache.put("k2", new byte[40], 60000);
+        cache.put("k3", new byte[40], 60000);
+        Assertions.assertNull(cache.get("k1"));
+        Assertions.assertNotNull(cache.get("k2"));
+        Assertions.assertNotNull(cache.get("k3"));
+        Assertions.assertTrue(cache.getStats().getUsedBytes() <= 100);
+
+        // 写第4条覆盖第2条
+        cache.put("k4", new byte[40], 60000);
+        Assertions.assertNull(cache.get("k2"));
+        Assertions.assertNotNull(cache.get("k3"));
+        Assertions.assertNotNull(cache.get("k4"));
+
+        cache.put("k5", new byte[10], -1);
+        Assertions.assertNull(cache.get("k5"));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,97 @@
+package com.hmdp;
+
+import com.hmdp.dto.CircuitBreakerStats;
+import com.hmdp.utils.RedisCircuitBreaker;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.RedisSystemException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+class RedisCircuitBreakerTest {
+
+    // 连续失败3次打开，打开100ms后半开，半开时放行2个探测请求
+    private final RedisCircuitBreaker breaker = new RedisCircuitBreaker(3, 1000, 100, 2);
+
+    @Test
+    void opensAfterConsecutiveFailuresAndShedsCalls() {
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertEquals("stale", breaker.execute(RedisCircuitBreakerTest::down, () -> "stale"));
+        }
+        Assertions.assertEquals(RedisCircuitBreaker.State.OPEN, breaker.getState());
+
+        // 打开后不再调用redis
+        AtomicInteger calls = new AtomicInteger();
+        Assertions.assertEquals("stale", breaker.execute(() -> {
+            calls.incrementAndGet();
+            return "fresh";
+        }, () -> "stale"));
+        Assertions.assertEquals(0, calls.get());
+        Assertions.assertThrows(RedisConnectionFailureException.class, () -> breaker.run(() -> {
+        }));
+
+        CircuitBreakerStats stats = breaker.getStats();
+        Assertions.assertEquals(1L, stats.getOpened());
+        Assertions.assertEquals(2L, stats.getShed());
+        Assertions.assertEquals(3L, stats.getFailures());
+    }
+
+    @Test
+    void successResetsConsecutiveFailures() {
+        breaker.execute(RedisCircuitBreakerTest::down, () -> null);
+        breaker.execute(RedisCircuitBreakerTest::down, () -> null);
+        breaker.execute(() -> "ok", () -> null);
+        breaker.execute(RedisCircuitBreakerTest::down, () -> null);
+        Assertions.assertTrue(breaker.isClosed());
+    }
+
+    @Test
+    void redisErrorIsNotFailure() {
+        for (int i = 0; i < 5; i++) {
+            Assertions.assertThrows(RedisSystemException.class, () -> breaker.execute(() -> {
+                throw new RedisSystemException("ERR script error", null);
+            }, () -> null));
+        }
+        Assertions.assertTrue(breaker.isClosed());
+    }
+
+    @Test
+    void halfOpenProbesCloseOrReopen() throws InterruptedException {
+        open();
+        Thread.sleep(150);
+        // 探测失败，重新打开
+        Assertions.assertNull(breaker.execute(RedisCircuitBreakerTest::down, () -> null));
+        Assertions.assertEquals(RedisCircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(150);
+        // 两个探测请求都成功后关闭
+        Assertions.assertEquals("ok", breaker.execute(() -> "ok", () -> "stale"));
+        Assertions.assertEquals(RedisCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        Assertions.assertEquals("ok", breaker.execute(() -> "ok", () -> "stale"));
+        Assertions.assertTrue(breaker.isClosed());
+        Assertions.assertEquals(1L, breaker.getStats().getClosed());
+        Assertions.assertEquals(2L, breaker.getStats().getHalfOpened());
+    }
+
+    @Test
+    void halfOpenLimitsConcurrentProbes() throws InterruptedException {
+        open();
+        Thread.sleep(150);
+        // 探测请求还没返回时，只能再放行1个，第3个被拒绝
+        String result = breaker.execute(() -> breaker.execute(() -> breaker.execute(() -> "probe3", () -> "shed"),
+                () -> "shed"), () -> "shed");
+        Assertions.assertEquals("shed", result);
+    }
+
+    private void open() {
+        for (int i = 0; i < 3; i++) {
+            breaker.execute(RedisCircuitBreakerTest::down, () -> null);
+        }
+        Assertions.assertEquals(RedisCircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    private static String down() {
+        throw new RedisConnectionFailureException("connection refused");
+    }
+}
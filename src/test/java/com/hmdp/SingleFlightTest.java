@@ -0,0 +1,85 @@
+package com.hmdp;
+
+import com.hmdp.utils.SingleFlight;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class SingleFlightTest {
+
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    @Test
+    void concurrentCallsShareOneLoad() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService es = Executors.newFixedThreadPool(20);
+
+        // 20个线程同时加载同一个key
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(es.submit(() -> {
+                start.await();
+                return singleFlight.execute("cache:shop:1", () -> {
+                    loads.incrementAndGet();
+                    sleep(200);  // 模拟查询数据库
+                    return "shop1";
+                });
+            }));
+        }
+        start.countDown();
+
+        for (Future<String> future : futures) {
+            Assertions.assertEquals("shop1", future.get());
+        }
+        // 只查了一次数据库
+        Assertions.assertEquals(1, loads.get());
+        Assertions.assertEquals(0, singleFlight.size());
+        es.shutdown();
+    }
+
+    @Test
+    void failureIsNotCached() {
+        Assertions.assertThrows(IllegalStateException.class,
+                () -> singleFlight.execute("cache:shop:2", () -> {
+                    throw new IllegalStateException("db down");
+                }));
+        // 失败后下一次调用会重新加载
+        Assertions.assertEquals("shop2", singleFlight.execute("cache:shop:2", () -> "shop2"));
+    }
+
+    @Test
+    void errorIsPropagatedToWaiters() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        Future<Object> loader = es.submit(() -> singleFlight.execute("cache:shop:3", () -> {
+            loading.countDown();
+            sleep(200);
+            throw new StackOverflowError();
+        }));
+        loading.await();
+
+        // 等待的线程拿到同一个Error，而不是一直阻塞
+        Assertions.assertThrows(StackOverflowError.class,
+                () -> singleFlight.execute("cache:shop:3", () -> "shop3"));
+        Assertions.assertThrows(ExecutionException.class, loader::get);
+        Assertions.assertEquals(0, singleFlight.size());
+        es.shutdown();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.hmdp;
+
+import com.hmdp.utils.TtlPolicyRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+class TtlPolicyRegistryTest {
+
+    @Test
+    void jitterStaysInRange() {
+        TtlPolicyRegistry registry = new TtlPolicyRegistry();
+        long base = TimeUnit.MINUTES.toMillis(30);
+        long min = Long.MAX_VALUE, max = 0;
+        for (int i = 0; i < 1000; i++) {
+            long ttl = registry.ttlMillis("cache:shop:" + i, 30, TimeUnit.MINUTES);
+            min = Math.min(min, ttl);
+            max = Math.max(max, ttl);
+        }
+        // 默认抖动10%
+        Assertions.assertTrue(min >= base * 0.9 && max <= base * 1.1);
+        Assertions.assertTrue(max > min);
+    }
+
+    @Test
+    void longestPrefixAndBucketsApply() {
+        TtlPolicyRegistry registry = new TtlPolicyRegistry();
+        TtlPolicyRegistry.TtlPolicy shop = new TtlPolicyRegistry.TtlPolicy();
+        shop.setJitter(0.0);
+        shop.setSpread(Duration.ofMinutes(10));
+        shop.setBuckets(10);
+        TtlPolicyRegistry.TtlPolicy type = new TtlPolicyRegistry.TtlPolicy();
+        type.setJitter(0.0);
+        type.setTtl(Duration.ofMinutes(60));
+        registry.getPolicies().put("cache:shop:", shop);
+        registry.getPolicies().put("cache:shop:type", type);
+
+        // 同一个key每次落在同一个桶，偏移是整分钟
+        long ttl = registry.ttlMillis("cache:shop:1", 30, TimeUnit.MINUTES);
+        Assertions.assertEquals(ttl, registry.ttlMillis("cache:shop:1", 30, TimeUnit.MINUTES));
+        Assertions.assertEquals(0, (ttl - TimeUnit.MINUTES.toMillis(30)) % TimeUnit.MINUTES.toMillis(1));
+        Assertions.assertTrue(ttl < TimeUnit.MINUTES.toMillis(40));
+        // 更长的前缀优先，且配置的ttl覆盖代码中的值
+        Assertions.assertEquals(TimeUnit.MINUTES.toMillis(60), registry.ttlMillis("cache:shop:type", 30, TimeUnit.MINUTES));
+    }
+}